@@ -0,0 +1,157 @@
+package cpsc441_assignment3;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * BatchTransmitter Class
+ * 
+ * Moves the datagram writes off the threads that decide what to send. FastFtp only records the sequence numbers of segments
+ * that are ready while it holds its lock, and this thread takes everything recorded so far in one go and writes it out as a
+ * burst, without holding FastFtp's lock. Resending a whole window on a timeout therefore costs FastFtp a few array writes
+ * instead of one system call per segment.
+ * 
+ * Bursts can optionally be paced: after every burstSize datagrams the thread pauses for the given interval. With a Pacer
+ * every datagram waits for its turn instead, at the rate FastFtp asks for at the start of each burst.
+ * 
+ * @author Tyrone
+ */
+public class BatchTransmitter implements Runnable {
+	private static final int INITIAL_CAPACITY = 64;
+	
+	private FastFtp _FtpParent;
+	private ReentrantLock _Lock;
+	private Condition _Ready;
+	private int[] _Pending;
+	private int _PendingCount;
+	private int[] _Draining;
+	private int _BurstSize;
+	private long _BurstInterval;
+	private Pacer _Pacer;
+	private long _Bursts;
+	private volatile boolean _Shutdown;
+	
+	/**
+	 * @param parent the sender whose segments are written
+	 */
+	public BatchTransmitter(FastFtp parent)
+	{
+		_FtpParent = parent;
+		_Lock = new ReentrantLock();
+		_Ready = _Lock.newCondition();
+		_Pending = new int[INITIAL_CAPACITY];
+		_Draining = new int[INITIAL_CAPACITY];
+		_BurstSize = Integer.MAX_VALUE;
+		_BurstInterval = 0;
+		_Pacer = null;
+		_Shutdown = false;
+	}
+	
+	/**
+	 * paces the bursts
+	 * 
+	 * @param burstSize number of datagrams written back to back, or 0 for no limit
+	 * @param interval pause after each burst (in micro-seconds)
+	 */
+	public void setPacing(int burstSize, long interval)
+	{
+		_BurstSize = burstSize > 0 ? burstSize : Integer.MAX_VALUE;
+		_BurstInterval = TimeUnit.MICROSECONDS.toNanos(interval);
+	}
+	
+	/**
+	 * paces every datagram, the rate is taken from FastFtp.getPacingRate() before each burst
+	 * 
+	 * @param pacer the pacer, or null not to pace
+	 */
+	public void setPacer(Pacer pacer)
+	{
+		_Pacer = pacer;
+	}
+	
+	/**
+	 * records a segment as ready to be written
+	 * 
+	 * @param seqNum sequence number of the segment
+	 */
+	public void enqueue(int seqNum)
+	{
+		_Lock.lock();
+		try{
+			if(_PendingCount == _Pending.length)
+				_Pending = Arrays.copyOf(_Pending, _Pending.length * 2);
+			_Pending[_PendingCount++] = seqNum;
+			if(_PendingCount == 1)
+				_Ready.signal();
+		}finally
+		{
+			_Lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return the number of bursts written so far
+	 */
+	public long getBurstCount()
+	{
+		return _Bursts;
+	}
+	
+	/**
+	 * stops the thread once everything already recorded has been written
+	 */
+	public void shutdown()
+	{
+		_Lock.lock();
+		try{
+			_Shutdown = true;
+			_Ready.signal();
+		}finally
+		{
+			_Lock.unlock();
+		}
+	}
+	
+	public void run()
+	{
+		while(true)
+		{
+			int count;
+			_Lock.lock();
+			try{
+				while(_PendingCount == 0 && !_Shutdown)
+					_Ready.awaitUninterruptibly();
+				if(_PendingCount == 0)
+					return;
+				
+				//swap the buffers so new segments can be recorded while this burst is written
+				int[] burst = _Pending;
+				_Pending = _Draining.length >= burst.length ? _Draining : new int[burst.length];
+				_Draining = burst;
+				count = _PendingCount;
+				_PendingCount = 0;
+			}finally
+			{
+				_Lock.unlock();
+			}
+			
+			_Bursts++;
+			int datagramSize = PayloadSize.HEADER_SIZE + _FtpParent.getPayloadSize();
+			if(_Pacer != null)
+				_Pacer.setRate(_FtpParent.getPacingRate());
+			for(int i = 0; i < count; i++)
+			{
+				if(_Pacer != null)
+					_Pacer.await(datagramSize);
+				_FtpParent.transmit(_Draining[i]);
+				if((i + 1) % _BurstSize == 0 && i + 1 < count)
+					LockSupport.parkNanos(_BurstInterval);
+			}
+			if(count >= _BurstSize)
+				LockSupport.parkNanos(_BurstInterval);
+		}
+	}
+}
@@ -0,0 +1,401 @@
+package cpsc441_assignment3;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import cpsc441.a3.Segment;
+import cpsc441.a3.TxQueue;
+
+/**
+ * Micro benchmarks for the sender hot paths: segment encoding and decoding, TxQueue under contention,
+ * FastFtp.processACK under cumulative and duplicate ack storms, with and without every ack logged, and
+ * FastFtp.processTimeout resending whole windows. The read-ahead benchmark reads a stream that stalls like a disk into the
+ * segment ring, with the reader stalling like a full window, with and without ReadAhead in between.
+ * 
+ * The contention profile sends a file to an in-process FastFtpServer with the locked and with the lock free window, and
+ * reports how often and how long the sending, receiving and timer threads were blocked on a monitor or parked waiting.
+ * 
+ * Each benchmark is warmed up before it is measured and reports operations per second. The FastFtp benchmarks send
+ * through a socket that discards every packet, so they measure our code rather than the network stack.
+ * 
+ * usage: java Benchmark [iterations]
+ * 
+ * @author Tyrone
+ */
+class Benchmark {
+	private static final int WARMUP_ITERATIONS = 3;
+	private static final int[] WINDOW_SIZES = {10, 100, 1000, 10000};
+	private static final int ACK_DUPLICATES = 3;
+	private static final int[] READ_AHEAD_DEPTHS = {0, 64, 512};
+	private static final int STALL_INTERVAL = 256 * 1024; // bytes
+	private static final long STALL = TimeUnit.MILLISECONDS.toNanos(1);
+	
+	private static int iterations = 5;
+	
+	/**
+	 * A unit of work that performs a known number of operations
+	 */
+	private interface Task {
+		void run() throws Exception;
+	}
+	
+	/**
+	 * A stream that pauses every STALL_INTERVAL bytes, the way a disk does when it seeks
+	 */
+	private static class StallingInputStream extends FilterInputStream {
+		private long sinceStall = 0;
+		
+		public StallingInputStream(InputStream input) {
+			super(input);
+		}
+		
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int amount = super.read(buffer, offset, length);
+			sinceStall += Math.max(0, amount);
+			if (sinceStall >= STALL_INTERVAL) {
+				sinceStall = 0;
+				LockSupport.parkNanos(STALL);
+			}
+			return amount;
+		}
+	}
+	
+	/**
+	 * A socket that drops everything sent through it
+	 */
+	private static class DiscardSocket extends DatagramSocket {
+		public DiscardSocket() throws IOException {
+			super((SocketAddress) null);
+		}
+		
+		public void send(DatagramPacket packet) {
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 1)
+			iterations = Integer.parseInt(args[0]);
+		
+		// FastFtp logs timeouts and transfer events through the EventLog, keep that out of the numbers
+		PrintStream console = System.out;
+		EventLog.getLog().setLevel(EventLog.Level.WARN);
+		
+		try {
+			segmentBenchmarks(console);
+			queueBenchmarks(console);
+			readAheadBenchmark(console);
+			for (int windowSize : WINDOW_SIZES)
+				ackBenchmark(console, windowSize);
+			ackLoggingBenchmark(console);
+			for (int windowSize : WINDOW_SIZES)
+				timeoutBenchmark(console, windowSize);
+			contentionProfile(console, false);
+			contentionProfile(console, true);
+		}
+		finally {
+			EventLog.getLog().flush();
+		}
+	}
+	
+	private static void segmentBenchmarks(PrintStream out) throws Exception {
+		final int count = 100000;
+		final byte[] payload = new byte[Segment.MAX_PAYLOAD_SIZE];
+		final Segment seg = new Segment(1, payload);
+		final byte[] encoded = seg.getBytes();
+		
+		measure(out, "Segment.getBytes", count, new Task() {
+			public void run() {
+				for (int i = 0; i < count; i++)
+					seg.getBytes();
+			}
+		});
+		
+		measure(out, "new Segment(byte[])", count, new Task() {
+			public void run() {
+				for (int i = 0; i < count; i++)
+					new Segment(encoded);
+			}
+		});
+		
+		final SegmentRing ring = new SegmentRing(100);
+		final byte[] file = new byte[Segment.MAX_PAYLOAD_SIZE * 1000];
+		measure(out, "SegmentRing.fill", count, new Task() {
+			public void run() throws IOException {
+				ByteArrayInputStream input = new ByteArrayInputStream(file);
+				for (int i = 0; i < count; i++) {
+					if (ring.fill(i, input) == null) {
+						input.reset();
+						ring.fill(i, input);
+					}
+				}
+			}
+		});
+	}
+	
+	private static void queueBenchmarks(PrintStream out) throws Exception {
+		final int count = 100000;
+		final TxQueue queue = new TxQueue(100);
+		final Segment seg = new Segment(0);
+		
+		measure(out, "TxQueue add/remove, 1 producer 1 consumer", count, new Task() {
+			public void run() throws Exception {
+				Thread consumer = new Thread() {
+					public void run() {
+						try {
+							for (int i = 0; i < count; i++)
+								queue.remove();
+						}
+						catch (InterruptedException ex) {
+						}
+					}
+				};
+				consumer.start();
+				for (int i = 0; i < count; i++)
+					queue.add(seg);
+				consumer.join();
+			}
+		});
+		
+		measure(out, "TxQueue add/remove with concurrent toArray", count, new Task() {
+			public void run() throws Exception {
+				final AtomicBoolean done = new AtomicBoolean(false);
+				Thread consumer = new Thread() {
+					public void run() {
+						try {
+							for (int i = 0; i < count; i++)
+								queue.remove();
+						}
+						catch (InterruptedException ex) {
+						}
+					}
+				};
+				Thread reader = new Thread() {
+					public void run() {
+						while (!done.get())
+							queue.toArray();
+					}
+				};
+				consumer.start();
+				reader.start();
+				for (int i = 0; i < count; i++)
+					queue.add(seg);
+				consumer.join();
+				done.set(true);
+				reader.join();
+			}
+		});
+	}
+	
+	private static void readAheadBenchmark(PrintStream out) throws Exception {
+		final byte[] file = new byte[16 * 1024 * 1024];
+		final SegmentRing ring = new SegmentRing(100);
+		final ExecutorService executor = Executors.newCachedThreadPool();
+		
+		// the reader pauses every STALL_INTERVAL bytes too, like a sender waiting on a full window
+		for (final int depth : READ_AHEAD_DEPTHS) {
+			measure(out, "read 16 MB into the ring, read-ahead " + depth + " (segments)", file.length / Segment.MAX_PAYLOAD_SIZE, new Task() {
+				public void run() throws IOException {
+					InputStream input = new StallingInputStream(new ByteArrayInputStream(file));
+					if (depth > 0)
+						input = new ReadAhead(input, Segment.MAX_PAYLOAD_SIZE, depth, executor);
+					long sinceStall = 0;
+					for (int i = 0; ring.fill(i, input) != null; i++) {
+						sinceStall += Segment.MAX_PAYLOAD_SIZE;
+						if (sinceStall >= STALL_INTERVAL) {
+							sinceStall = 0;
+							LockSupport.parkNanos(STALL);
+						}
+					}
+					input.close();
+				}
+			});
+		}
+		executor.shutdown();
+	}
+	
+	private static void ackBenchmark(PrintStream out, int windowSize) throws Exception {
+		int rounds = Math.max(1, 100000 / windowSize);
+		measure(out, "processACK storm, window " + windowSize, rounds * windowSize * (1 + ACK_DUPLICATES),
+				ackStorm(newSender(windowSize), windowSize, rounds, null));
+	}
+	
+	// the ack storm with every ack logged at debug level: filtered out, written by the event log's thread in full and
+	// sampled, and printed synchronously on the acking thread the way FastFtp used to
+	private static void ackLoggingBenchmark(PrintStream out) throws Exception {
+		final int windowSize = 100;
+		final int rounds = 1000;
+		final int operations = rounds * windowSize * (1 + ACK_DUPLICATES);
+		EventLog log = EventLog.getLog();
+		File file = File.createTempFile("benchmark", ".log");
+		file.deleteOnExit();
+		PrintStream logFile = new PrintStream(new FileOutputStream(file), true);
+		log.setOutput(logFile);
+		
+		try {
+			log.setLevel(EventLog.Level.INFO);
+			measure(out, "processACK storm, acks not logged", operations, ackStorm(newSender(windowSize), windowSize, rounds, null));
+			
+			log.setLevel(EventLog.Level.DEBUG);
+			long dropped = log.getDroppedCount();
+			measure(out, "processACK storm, acks logged async", operations, ackStorm(newSender(windowSize), windowSize, rounds, null));
+			log.flush();
+			out.printf("%-60s %,14d events dropped\n", "", log.getDroppedCount() - dropped);
+			
+			log.setSampleRate(EventLog.Level.DEBUG, 100);
+			dropped = log.getDroppedCount();
+			measure(out, "processACK storm, acks logged async 1 in 100", operations, ackStorm(newSender(windowSize), windowSize, rounds, null));
+			log.flush();
+			out.printf("%-60s %,14d events dropped\n", "", log.getDroppedCount() - dropped);
+			
+			log.setLevel(EventLog.Level.INFO);
+			measure(out, "processACK storm, acks printed synchronously", operations, ackStorm(newSender(windowSize), windowSize, rounds, logFile));
+		}
+		finally {
+			log.setSampleRate(EventLog.Level.DEBUG, 1);
+			// back to the level main runs the other benchmarks at
+			log.setLevel(EventLog.Level.WARN);
+			log.setOutput(null);
+			logFile.close();
+			file.delete();
+		}
+	}
+	
+	// every round fills the window, then acks it one segment at a time, each new ack followed by duplicates
+	private static Task ackStorm(final FastFtp ftp, final int windowSize, final int rounds, final PrintStream echo) {
+		final int[] nextSeqNum = {0};
+		final Segment ack = new Segment();
+		return new Task() {
+			public void run() {
+				for (int r = 0; r < rounds; r++) {
+					int first = nextSeqNum[0];
+					for (int i = 0; i < windowSize; i++)
+						ftp.processSend(new Segment(nextSeqNum[0]++));
+					for (int i = 1; i <= windowSize; i++) {
+						ack.setSeqNum(first + i);
+						for (int d = 0; d <= ACK_DUPLICATES; d++) {
+							if (echo != null)
+								echo.println("Processing ack: " + ack.getSeqNum());
+							ftp.processACK(ack);
+						}
+					}
+				}
+			}
+		};
+	}
+	
+	private static void timeoutBenchmark(PrintStream out, int windowSize) throws Exception {
+		final int rounds = Math.max(10, 100000 / windowSize);
+		final FastFtp ftp = newSender(windowSize);
+		for (int i = 0; i < windowSize; i++)
+			ftp.processSend(new Segment(i));
+		
+		measure(out, "processTimeout resend, window " + windowSize + " (segments)", rounds * windowSize, new Task() {
+			public void run() {
+				for (int r = 0; r < rounds; r++)
+					ftp.processTimeout();
+			}
+		});
+	}
+	
+	private static void contentionProfile(PrintStream out, boolean lockFree) throws Exception {
+		final int windowSize = 100;
+		File directory = ThroughputHarness.createTempDirectory();
+		File outputDirectory = new File(directory, "received");
+		outputDirectory.mkdir();
+		File file = ThroughputHarness.createTestFile(directory, "contention.bin", 20 * 1024 * 1024, 441);
+		
+		FastFtpServer server = new FastFtpServer(0, RetransmissionMode.GO_BACK_N, windowSize, outputDirectory);
+		Thread serverThread = new Thread(server);
+		serverThread.setDaemon(true);
+		serverThread.start();
+		
+		// the sender's threads have to outlive the transfer to be measured, so they come from pools of our own
+		ExecutorService receivers = Executors.newFixedThreadPool(2, new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "benchmark receiver");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		ScheduledExecutorService timers = FastFtp.createTimerService();
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads.isThreadContentionMonitoringSupported())
+			threads.setThreadContentionMonitoringEnabled(true);
+		
+		long[] before = contention(threads);
+		FastFtp ftp = new FastFtp(windowSize, 50, RetransmissionMode.GO_BACK_N, receivers, timers);
+		ftp.setLockFreeWindow(lockFree);
+		long start = System.nanoTime();
+		ftp.send("localhost", server.getPort(), file.getPath());
+		double seconds = (System.nanoTime() - start) / 1e9;
+		long[] after = contention(threads);
+		
+		long segments = (file.length() + Segment.MAX_PAYLOAD_SIZE - 1) / Segment.MAX_PAYLOAD_SIZE + ftp.getRetransmissionCount();
+		out.printf("%-60s %,14.0f segments/s, blocked %d times (%d ms), waited %d times\n",
+				"contention profile, " + (lockFree ? "lock free" : "locked") + " window " + windowSize, segments / seconds,
+				after[0] - before[0], after[1] - before[1], after[2] - before[2]);
+		
+		receivers.shutdownNow();
+		timers.shutdownNow();
+		server.shutdown();
+	}
+	
+	// blocked count, blocked time (ms) and waited count, summed over this thread and the sender's pool threads
+	private static long[] contention(ThreadMXBean threads) {
+		long[] totals = new long[3];
+		for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+			if (info == null)
+				continue;
+			String name = info.getThreadName();
+			if (info.getThreadId() != Thread.currentThread().getId() && !name.equals("benchmark receiver") && !name.equals("FastFtp timer"))
+				continue;
+			totals[0] += info.getBlockedCount();
+			totals[1] += Math.max(0, info.getBlockedTime());
+			totals[2] += info.getWaitedCount();
+		}
+		return totals;
+	}
+	
+	// a sender with a fixed, long timeout so no timer fires on its own during a benchmark
+	private static FastFtp newSender(int windowSize) throws IOException {
+		FastFtp ftp = new FastFtp(windowSize, (int) RttEstimator.MAX_RTO);
+		ftp.setAdaptiveRto(false);
+		ftp.attach(new DiscardSocket(), InetAddress.getLoopbackAddress(), 9);
+		return ftp;
+	}
+	
+	private static void measure(PrintStream out, String name, long operations, Task task) throws Exception {
+		for (int i = 0; i < WARMUP_ITERATIONS; i++)
+			task.run();
+		
+		double best = 0;
+		double total = 0;
+		for (int i = 0; i < iterations; i++) {
+			long start = System.nanoTime();
+			task.run();
+			double rate = operations / ((System.nanoTime() - start) / 1e9);
+			best = Math.max(best, rate);
+			total += rate;
+		}
+		out.printf("%-60s %,14.0f ops/s (best %,.0f)\n", name, total / iterations, best);
+	}
+}
@@ -0,0 +1,210 @@
+package cpsc441_assignment3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+/**
+ * BlockCompressor Class
+ *
+ * Compresses a stream in independent blocks, and is read as the compressed stream. Blocks of BLOCK_SIZE bytes are read on
+ * the reading thread and deflated by a pool of workers, up to a few blocks per worker ahead of the reader, so the sending
+ * thread normally finds the next block already compressed. Blocks come out in the order they were read. FastFtp hands
+ * every stream the same pool of one worker per processor, so however many transfers compress at once, no more blocks
+ * are deflated at a time than there are processors.
+ *
+ * Every block is framed by a header: a type byte (STORED or DEFLATED), the length of the raw block and the length of the
+ * data that follows, both as big endian ints. A block that does not get smaller is stored as it is. BlockDecompressor
+ * reverses the framing on the receiving end.
+ *
+ * @author Tyrone
+ */
+public class BlockCompressor extends InputStream {
+	public static final int BLOCK_SIZE = 64 * 1024; //bytes
+	public static final int HEADER_SIZE = 9; //bytes
+	public static final byte STORED = 0;
+	public static final byte DEFLATED = 1;
+
+	private static final int BLOCKS_PER_WORKER = 4;
+
+	private InputStream _Input;
+	private int _Level;
+	private ExecutorService _Executor;
+	private ArrayDeque<Future<byte[]>> _Pending;
+	private int _Ahead;
+	private boolean _InputDone;
+	private byte[] _Block;
+	private int _Position;
+
+	/**
+	 * @param input the raw stream
+	 * @param level deflate level, from Deflater.BEST_SPEED to Deflater.BEST_COMPRESSION
+	 * @param workers number of threads of the pool, sets how many blocks are queued ahead of the reader
+	 * @param executor the pool compressing the blocks
+	 */
+	public BlockCompressor(InputStream input, int level, int workers, ExecutorService executor)
+	{
+		_Input = input;
+		_Level = level;
+		_Executor = executor;
+		_Pending = new ArrayDeque<Future<byte[]>>();
+		_Ahead = workers * BLOCKS_PER_WORKER;
+		_InputDone = false;
+		_Block = null;
+		_Position = 0;
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		byte[] single = new byte[1];
+		return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException
+	{
+		if(length == 0)
+			return 0;
+
+		while(_Block == null || _Position == _Block.length)
+		{
+			_Block = nextBlock();
+			_Position = 0;
+			if(_Block == null)
+				return -1;
+		}
+
+		int amount = Math.min(length, _Block.length - _Position);
+		System.arraycopy(_Block, _Position, buffer, offset, amount);
+		_Position += amount;
+		return amount;
+	}
+
+	/**
+	 * keeps the workers busy with the blocks ahead and waits for the oldest one
+	 *
+	 * @return the next framed block, or null at the end of the stream
+	 * @throws IOException if the raw stream cannot be read or a block cannot be compressed
+	 */
+	private byte[] nextBlock() throws IOException
+	{
+		while(!_InputDone && _Pending.size() < _Ahead)
+		{
+			byte[] raw = readBlock();
+			if(raw == null)
+			{
+				_InputDone = true;
+				break;
+			}
+			_Pending.add(_Executor.submit(new Compression(raw, _Level)));
+		}
+
+		Future<byte[]> next = _Pending.poll();
+		if(next == null)
+			return null;
+
+		try{
+			return next.get();
+		}catch(InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while compressing", ex);
+		}catch(ExecutionException ex)
+		{
+			throw new IOException("Failed to compress block", ex.getCause());
+		}
+	}
+
+	/**
+	 * @return up to BLOCK_SIZE bytes of the raw stream, or null if it is exhausted
+	 */
+	private byte[] readBlock() throws IOException
+	{
+		byte[] raw = new byte[BLOCK_SIZE];
+		int length = 0;
+		int amountRead;
+		while(length < BLOCK_SIZE && (amountRead = _Input.read(raw, length, BLOCK_SIZE - length)) != -1)
+			length += amountRead;
+
+		if(length == 0)
+			return null;
+		return length == BLOCK_SIZE ? raw : Arrays.copyOf(raw, length);
+	}
+
+	/**
+	 * drops the blocks still being compressed and closes the raw stream
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		for(Future<byte[]> pending : _Pending)
+			pending.cancel(true);
+		_Pending.clear();
+		_Input.close();
+	}
+
+	/**
+	 * deflates one block into its frame
+	 */
+	private static class Compression implements Callable<byte[]> {
+		private byte[] _Raw;
+		private int _Level;
+
+		public Compression(byte[] raw, int level)
+		{
+			_Raw = raw;
+			_Level = level;
+		}
+
+		public byte[] call()
+		{
+			Deflater deflater = new Deflater(_Level);
+			byte[] frame = new byte[HEADER_SIZE + _Raw.length];
+			int length = 0;
+			boolean finished;
+			try{
+				deflater.setInput(_Raw);
+				deflater.finish();
+				while(!deflater.finished() && HEADER_SIZE + length < frame.length)
+					length += deflater.deflate(frame, HEADER_SIZE + length, frame.length - HEADER_SIZE - length);
+				finished = deflater.finished();
+			}finally
+			{
+				deflater.end();
+			}
+
+			//the block did not shrink, send it as it is
+			if(!finished || length >= _Raw.length)
+			{
+				System.arraycopy(_Raw, 0, frame, HEADER_SIZE, _Raw.length);
+				writeHeader(frame, STORED, _Raw.length, _Raw.length);
+				return frame;
+			}
+
+			writeHeader(frame, DEFLATED, _Raw.length, length);
+			return Arrays.copyOf(frame, HEADER_SIZE + length);
+		}
+	}
+
+	private static void writeHeader(byte[] frame, byte type, int rawLength, int dataLength)
+	{
+		frame[0] = type;
+		writeInt(frame, 1, rawLength);
+		writeInt(frame, 5, dataLength);
+	}
+
+	private static void writeInt(byte[] buffer, int offset, int value)
+	{
+		buffer[offset] = (byte)(value >>> 24);
+		buffer[offset + 1] = (byte)(value >>> 16);
+		buffer[offset + 2] = (byte)(value >>> 8);
+		buffer[offset + 3] = (byte)value;
+	}
+}
@@ -0,0 +1,134 @@
+package cpsc441_assignment3;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * BlockDecompressor Class
+ *
+ * The receiving end of BlockCompressor. The payloads of a compressed transfer are handed in in order, and every block is
+ * inflated and written out as soon as its whole frame has arrived. Only the unfinished frame is buffered.
+ *
+ * Not thread safe, a ReceiveSession only hands in payloads while holding its own lock.
+ *
+ * @author Tyrone
+ */
+public class BlockDecompressor {
+	private DataOutput _Output;
+	private Inflater _Inflater;
+	private byte[] _Frame;
+	private int _Length;
+	private byte[] _Block;
+
+	/**
+	 * @param output where the raw bytes are written
+	 */
+	public BlockDecompressor(DataOutput output)
+	{
+		_Output = output;
+		_Inflater = new Inflater();
+		_Frame = new byte[BlockCompressor.HEADER_SIZE + BlockCompressor.BLOCK_SIZE];
+		_Length = 0;
+		_Block = new byte[BlockCompressor.BLOCK_SIZE];
+	}
+
+	/**
+	 * takes the next bytes of the compressed stream
+	 *
+	 * @param data a payload, in order
+	 * @throws IOException if a block is corrupt or cannot be written
+	 */
+	public void write(byte[] data) throws IOException
+	{
+		int offset = 0;
+		while(offset < data.length)
+		{
+			//fill up the header first, then the rest of the frame it announces
+			boolean header = _Length < BlockCompressor.HEADER_SIZE;
+			int wanted = header ? BlockCompressor.HEADER_SIZE : BlockCompressor.HEADER_SIZE + dataLength();
+			int amount = Math.min(wanted - _Length, data.length - offset);
+			System.arraycopy(data, offset, _Frame, _Length, amount);
+			_Length += amount;
+			offset += amount;
+
+			if(_Length == wanted)
+			{
+				if(header)
+					checkHeader();
+				else
+					writeBlock();
+			}
+		}
+	}
+
+	/**
+	 * @throws IOException if the stream ended part way through a block
+	 */
+	public void finish() throws IOException
+	{
+		if(_Length != 0)
+			throw new IOException("Compressed stream ended inside a block");
+	}
+
+	/**
+	 * frees the inflater's native memory, whether the stream was finished or not
+	 */
+	public void close()
+	{
+		_Inflater.end();
+	}
+
+	private void checkHeader() throws IOException
+	{
+		int rawLength = readInt(1);
+		int dataLength = dataLength();
+		if(_Frame[0] != BlockCompressor.STORED && _Frame[0] != BlockCompressor.DEFLATED)
+			throw new IOException("Unknown block type " + _Frame[0]);
+		if(rawLength <= 0 || rawLength > BlockCompressor.BLOCK_SIZE || dataLength <= 0 || dataLength > rawLength
+				|| (_Frame[0] == BlockCompressor.STORED && dataLength != rawLength))
+			throw new IOException("Corrupt block header");
+	}
+
+	private void writeBlock() throws IOException
+	{
+		int rawLength = readInt(1);
+		if(_Frame[0] == BlockCompressor.STORED)
+		{
+			_Output.write(_Frame, BlockCompressor.HEADER_SIZE, rawLength);
+		}else
+		{
+			_Inflater.reset();
+			_Inflater.setInput(_Frame, BlockCompressor.HEADER_SIZE, dataLength());
+			try{
+				int length = 0;
+				while(length < rawLength && !_Inflater.finished())
+				{
+					int amount = _Inflater.inflate(_Block, length, rawLength - length);
+					if(amount == 0 && (_Inflater.needsInput() || _Inflater.needsDictionary()))
+						break;
+					length += amount;
+				}
+				if(length != rawLength || !_Inflater.finished())
+					throw new IOException("Corrupt block");
+			}catch(DataFormatException ex)
+			{
+				throw new IOException("Corrupt block", ex);
+			}
+			_Output.write(_Block, 0, rawLength);
+		}
+		_Length = 0;
+	}
+
+	private int dataLength()
+	{
+		return readInt(5);
+	}
+
+	private int readInt(int offset)
+	{
+		return ((_Frame[offset] & 0xff) << 24) | ((_Frame[offset + 1] & 0xff) << 16) | ((_Frame[offset + 2] & 0xff) << 8)
+				| (_Frame[offset + 3] & 0xff);
+	}
+}
@@ -0,0 +1,100 @@
+package cpsc441_assignment3;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Checkpoint Class
+ *
+ * Remembers how far into a file a resumable transfer got, in a small file next to it. The checkpoint records the size and
+ * modification time of the file along with the offset the receiver has acknowledged everything up to, and only counts for
+ * the same, unchanged file. It is written to a temporary file first and renamed over the old one, so a sender that dies
+ * while saving leaves the previous checkpoint behind rather than a torn one.
+ *
+ * @author Tyrone
+ */
+public class Checkpoint {
+	private static final String SUFFIX = ".checkpoint";
+
+	private File _Source;
+	private File _File;
+	private File _TempFile;
+	private long _Saved;
+
+	/**
+	 * @param source the file being sent
+	 */
+	public Checkpoint(File source)
+	{
+		_Source = source;
+		_File = new File(source.getPath() + SUFFIX);
+		_TempFile = new File(source.getPath() + SUFFIX + ".tmp");
+		_Saved = -1;
+	}
+
+	/**
+	 * @return the offset a previous transfer of the file got to, or 0 if there is no checkpoint for the file as it is now
+	 */
+	public long load()
+	{
+		if(!_File.isFile())
+			return 0;
+
+		try(DataInputStream in = new DataInputStream(new FileInputStream(_File)))
+		{
+			long size = in.readLong();
+			long modified = in.readLong();
+			long offset = in.readLong();
+			if(size != _Source.length() || modified != _Source.lastModified() || offset < 0 || offset > size)
+				return 0;
+			_Saved = offset;
+			return offset;
+		}catch(IOException ex)
+		{
+			return 0;
+		}
+	}
+
+	/**
+	 * records the offset, unless it is already the one on disk
+	 *
+	 * @param offset the receiver has acknowledged every byte of the file before this
+	 * @throws IOException if the checkpoint cannot be written
+	 */
+	public synchronized void save(long offset) throws IOException
+	{
+		if(offset == _Saved)
+			return;
+
+		try(DataOutputStream out = new DataOutputStream(new FileOutputStream(_TempFile)))
+		{
+			out.writeLong(_Source.length());
+			out.writeLong(_Source.lastModified());
+			out.writeLong(offset);
+		}
+		try{
+			Files.move(_TempFile.toPath(), _File.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}catch(AtomicMoveNotSupportedException ex)
+		{
+			Files.move(_TempFile.toPath(), _File.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		_Saved = offset;
+	}
+
+	/**
+	 * removes the checkpoint once the file has been delivered
+	 */
+	public synchronized void delete()
+	{
+		_File.delete();
+		_TempFile.delete();
+		_Saved = -1;
+	}
+}
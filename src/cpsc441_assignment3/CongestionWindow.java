@@ -0,0 +1,155 @@
+package cpsc441_assignment3;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * CongestionWindow Class
+ * 
+ * Tracks a TCP style congestion window (in segments): slow start below the threshold, additive increase above it,
+ * and a multiplicative decrease back to one segment on a timeout, or to half the window on a fast retransmit. The window never grows past the capacity of the
+ * send queue, so it only ever shrinks the window FastFtp was configured with.
+ * 
+ * Every change of the whole number of segments is recorded with a timestamp so the window can be inspected after a transfer.
+ * Only the last HISTORY_SIZE changes are kept, so a long lossy transfer does not keep growing the history.
+ * 
+ * @author Tyrone
+ */
+public class CongestionWindow {
+	public static final int INITIAL_WINDOW = 2; //segments
+	public static final int HISTORY_SIZE = 1024; //samples
+	
+	private int _MaxWindow;
+	private double _Window;
+	private double _Threshold;
+	private long _StartTime;
+	private ArrayDeque<Sample> _History;
+	private long _Changes;
+	
+	/**
+	 * a single recorded value of the congestion window
+	 */
+	public static class Sample {
+		private long _Time;
+		private int _Window;
+		
+		public Sample(long time, int window)
+		{
+			_Time = time;
+			_Window = window;
+		}
+		
+		/**
+		 * @return milli-seconds since the window was created
+		 */
+		public long getTime()
+		{
+			return _Time;
+		}
+		
+		/**
+		 * @return the congestion window at that time (in segments)
+		 */
+		public int getWindow()
+		{
+			return _Window;
+		}
+	}
+	
+	/**
+	 * @param maxWindow the capacity of the send queue (in segments)
+	 */
+	public CongestionWindow(int maxWindow)
+	{
+		_MaxWindow = maxWindow;
+		_Window = Math.min(INITIAL_WINDOW, maxWindow);
+		_Threshold = maxWindow;
+		_StartTime = System.currentTimeMillis();
+		_History = new ArrayDeque<Sample>();
+		_Changes = 0;
+		record();
+	}
+	
+	/**
+	 * grows the window for newly acknowledged segments
+	 * 
+	 * @param acked the number of segments the ack acknowledged for the first time
+	 */
+	public synchronized void onAck(int acked)
+	{
+		int before = getWindow();
+		for(int i = 0; i < acked; i++)
+		{
+			if(_Window < _Threshold)
+				_Window += 1;
+			else
+				_Window += 1 / _Window;
+		}
+		_Window = Math.min(_Window, _MaxWindow);
+		
+		if(getWindow() != before)
+			record();
+	}
+	
+	/**
+	 * halves the threshold and restarts slow start from one segment after a retransmission timeout
+	 */
+	public synchronized void onTimeout()
+	{
+		_Threshold = Math.max(_Window / 2, 2);
+		_Window = 1;
+		record();
+	}
+	
+	/**
+	 * halves the window after a fast retransmit. The duplicate acks show segments are still getting through, so unlike
+	 * a timeout this carries on with additive increase instead of restarting slow start
+	 */
+	public synchronized void onFastRetransmit()
+	{
+		_Threshold = Math.max(_Window / 2, 2);
+		_Window = Math.min(_Window, _Threshold);
+		record();
+	}
+	
+	/**
+	 * @return the number of segments that may currently be unacknowledged
+	 */
+	public synchronized int getWindow()
+	{
+		return (int)_Window;
+	}
+	
+	/**
+	 * @return the slow start threshold (in segments)
+	 */
+	public synchronized int getThreshold()
+	{
+		return (int)_Threshold;
+	}
+	
+	/**
+	 * @return a copy of the last HISTORY_SIZE recorded changes of the window, oldest first
+	 */
+	public synchronized List<Sample> getHistory()
+	{
+		return new ArrayList<Sample>(_History);
+	}
+	
+	/**
+	 * @return the number of changes recorded over the whole transfer, including those dropped from the history
+	 */
+	public synchronized long getChangeCount()
+	{
+		return _Changes;
+	}
+	
+	private void record()
+	{
+		if(_History.size() == HISTORY_SIZE)
+			_History.removeFirst();
+		_History.addLast(new Sample(System.currentTimeMillis() - _StartTime, getWindow()));
+		_Changes++;
+	}
+}
@@ -0,0 +1,126 @@
+package cpsc441_assignment3;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * DeltaDecoder Class
+ *
+ * The receiving end of DeltaEncoder. The payloads of a delta transfer are handed in in order, a COPY instruction is
+ * written out from the receiver's copy as soon as its header has arrived, and literals are written out as they arrive.
+ * Only an unfinished header is buffered.
+ *
+ * A copied block is checked against the digest it was sent with, so a copy that changed since it was hashed fails the
+ * transfer instead of rebuilding the file with whatever the block holds now.
+ *
+ * Not thread safe, a ReceiveSession only hands in payloads while holding its own lock.
+ *
+ * @author Tyrone
+ */
+public class DeltaDecoder {
+	private RandomAccessFile _Basis;
+	private DeltaSignatures _Signatures;
+	private MessageDigest _Digest;
+	private DataOutput _Output;
+	private byte[] _Header;
+	private int _HeaderLength;
+	private int _Literal;
+	private byte[] _Block;
+	private boolean _Ended;
+
+	/**
+	 * @param basis the receiver's copy
+	 * @param signatures the signatures sent to the sender, computed from the copy
+	 * @param output where the rebuilt file is written, not the copy itself
+	 */
+	public DeltaDecoder(RandomAccessFile basis, DeltaSignatures signatures, DataOutput output)
+	{
+		_Basis = basis;
+		_Signatures = signatures;
+		_Digest = DeltaSignatures.createDigest();
+		_Output = output;
+		_Header = new byte[DeltaEncoder.HEADER_SIZE];
+		_HeaderLength = 0;
+		_Literal = 0;
+		_Block = new byte[signatures.getBlockSize()];
+		_Ended = false;
+	}
+
+	/**
+	 * takes the next bytes of the instruction stream
+	 *
+	 * @param data a payload, in order
+	 * @throws IOException if an instruction is corrupt, the copy changed or cannot be read, or the file cannot be written
+	 */
+	public void write(byte[] data) throws IOException
+	{
+		int offset = 0;
+		while(offset < data.length)
+		{
+			if(_Ended)
+				throw new IOException("Delta continues past its end");
+
+			//the rest of a literal goes straight through, otherwise fill up the next header
+			if(_Literal > 0)
+			{
+				int amount = Math.min(_Literal, data.length - offset);
+				_Output.write(data, offset, amount);
+				_Literal -= amount;
+				offset += amount;
+				continue;
+			}
+
+			int amount = Math.min(DeltaEncoder.HEADER_SIZE - _HeaderLength, data.length - offset);
+			System.arraycopy(data, offset, _Header, _HeaderLength, amount);
+			_HeaderLength += amount;
+			offset += amount;
+			if(_HeaderLength == DeltaEncoder.HEADER_SIZE)
+			{
+				_HeaderLength = 0;
+				apply();
+			}
+		}
+	}
+
+	/**
+	 * @throws IOException if the stream ended before its END instruction, the rebuilt file is incomplete
+	 */
+	public void finish() throws IOException
+	{
+		if(!_Ended)
+			throw new IOException("Delta ended before its last instruction");
+	}
+
+	private void apply() throws IOException
+	{
+		int value = ((_Header[1] & 0xff) << 24) | ((_Header[2] & 0xff) << 16) | ((_Header[3] & 0xff) << 8)
+				| (_Header[4] & 0xff);
+		switch(_Header[0])
+		{
+			case DeltaEncoder.COPY:
+				if(value < 0 || value >= _Signatures.getBlockCount())
+					throw new IOException("Corrupt delta, no block " + value);
+				int length = _Signatures.getBlockLength(value);
+				_Basis.seek((long)value * _Signatures.getBlockSize());
+				_Basis.readFully(_Block, 0, length);
+				_Digest.update(_Block, 0, length);
+				if(!Arrays.equals(_Digest.digest(), _Signatures.getStrong(value)))
+					throw new IOException("Block " + value + " of the copy changed since it was hashed");
+				_Output.write(_Block, 0, length);
+				break;
+			case DeltaEncoder.LITERAL:
+				if(value <= 0)
+					throw new IOException("Corrupt delta, literal of " + value + " bytes");
+				_Literal = value;
+				break;
+			case DeltaEncoder.END:
+				_Ended = true;
+				break;
+			default:
+				throw new IOException("Unknown delta instruction " + _Header[0]);
+		}
+	}
+}
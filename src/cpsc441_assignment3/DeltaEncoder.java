@@ -0,0 +1,282 @@
+package cpsc441_assignment3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * DeltaEncoder Class
+ *
+ * Turns a file into the instructions to rebuild it from the receiver's copy, and is read as that stream of instructions.
+ * The file is read in chunks of whole blocks on the reading thread, and a pool of workers rolls the weak checksum over
+ * every chunk a byte at a time, looking each window up in the receiver's DeltaSignatures, up to a few chunks per worker
+ * ahead of the reader. Chunks come out in the order they were read. FastFtp hands every encoder the same pool of one
+ * worker per processor, the one BlockCompressor runs on. A block straddling two chunks is sent as literals,
+ * which only costs anything where the file has shifted against the receiver's copy.
+ *
+ * Every instruction is a type byte and a big endian int: COPY with the index of one of the receiver's blocks, LITERAL
+ * with the number of bytes that follow it, and END once, after the last chunk. DeltaDecoder rebuilds the file on the
+ * receiving end.
+ *
+ * @author Tyrone
+ */
+public class DeltaEncoder extends InputStream {
+	public static final int HEADER_SIZE = 5; //bytes
+	public static final byte COPY = 0;
+	public static final byte LITERAL = 1;
+	public static final byte END = 2;
+
+	private static final int CHUNK_SIZE = 1024 * 1024; //bytes
+	private static final int CHUNKS_PER_WORKER = 2;
+
+	private InputStream _Input;
+	private DeltaSignatures _Signatures;
+	private int _ChunkSize;
+	private ExecutorService _Executor;
+	private ArrayDeque<Future<byte[]>> _Pending;
+	private int _Ahead;
+	private boolean _InputDone;
+	private boolean _Ended;
+	private byte[] _Chunk;
+	private int _Position;
+	private AtomicLong _MatchedBytes;
+	private AtomicLong _LiteralBytes;
+
+	/**
+	 * @param input the file
+	 * @param signatures the blocks of the receiver's copy
+	 * @param workers number of threads of the pool, sets how many chunks are queued ahead of the reader
+	 * @param executor the pool matching the chunks
+	 */
+	public DeltaEncoder(InputStream input, DeltaSignatures signatures, int workers, ExecutorService executor)
+	{
+		_Input = input;
+		_Signatures = signatures;
+		//whole blocks, so a file that has not shifted lines up with the receiver's blocks in every chunk
+		_ChunkSize = Math.max(1, CHUNK_SIZE / signatures.getBlockSize()) * signatures.getBlockSize();
+		_Executor = executor;
+		_Pending = new ArrayDeque<Future<byte[]>>();
+		_Ahead = workers * CHUNKS_PER_WORKER;
+		_InputDone = false;
+		_Ended = false;
+		_Chunk = null;
+		_Position = 0;
+		_MatchedBytes = new AtomicLong(0);
+		_LiteralBytes = new AtomicLong(0);
+	}
+
+	/**
+	 * @return bytes of the file copied from the receiver's copy so far
+	 */
+	public long getMatchedBytes()
+	{
+		return _MatchedBytes.get();
+	}
+
+	/**
+	 * @return bytes of the file sent as literals so far
+	 */
+	public long getLiteralBytes()
+	{
+		return _LiteralBytes.get();
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		byte[] single = new byte[1];
+		return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException
+	{
+		if(length == 0)
+			return 0;
+
+		while(_Chunk == null || _Position == _Chunk.length)
+		{
+			_Chunk = nextChunk();
+			_Position = 0;
+			if(_Chunk == null)
+				return -1;
+		}
+
+		int amount = Math.min(length, _Chunk.length - _Position);
+		System.arraycopy(_Chunk, _Position, buffer, offset, amount);
+		_Position += amount;
+		return amount;
+	}
+
+	/**
+	 * keeps the workers busy with the chunks ahead and waits for the oldest one
+	 *
+	 * @return the instructions of the next chunk, the END instruction after the last one, then null
+	 * @throws IOException if the file cannot be read or a chunk cannot be matched
+	 */
+	private byte[] nextChunk() throws IOException
+	{
+		while(!_InputDone && _Pending.size() < _Ahead)
+		{
+			byte[] data = readChunk();
+			if(data == null)
+			{
+				_InputDone = true;
+				break;
+			}
+			_Pending.add(_Executor.submit(new Matching(data)));
+		}
+
+		Future<byte[]> next = _Pending.poll();
+		if(next == null)
+		{
+			if(_Ended)
+				return null;
+			_Ended = true;
+			byte[] end = new byte[HEADER_SIZE];
+			end[0] = END;
+			return end;
+		}
+
+		try{
+			return next.get();
+		}catch(InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while matching", ex);
+		}catch(ExecutionException ex)
+		{
+			throw new IOException("Failed to match chunk", ex.getCause());
+		}
+	}
+
+	/**
+	 * @return up to a chunk of the file, or null if it is exhausted
+	 */
+	private byte[] readChunk() throws IOException
+	{
+		byte[] data = new byte[_ChunkSize];
+		int length = 0;
+		int amountRead;
+		while(length < _ChunkSize && (amountRead = _Input.read(data, length, _ChunkSize - length)) != -1)
+			length += amountRead;
+
+		if(length == 0)
+			return null;
+		return length == _ChunkSize ? data : Arrays.copyOf(data, length);
+	}
+
+	/**
+	 * drops the chunks still being matched and closes the file
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		for(Future<byte[]> pending : _Pending)
+			pending.cancel(true);
+		_Pending.clear();
+		_Input.close();
+	}
+
+	/**
+	 * finds the receiver's blocks in one chunk and writes its instructions
+	 */
+	private class Matching implements Callable<byte[]> {
+		private byte[] _Data;
+		private ByteArrayOutputStream _Instructions;
+		private DataOutputStream _Out;
+
+		public Matching(byte[] data)
+		{
+			_Data = data;
+			_Instructions = new ByteArrayOutputStream();
+			_Out = new DataOutputStream(_Instructions);
+		}
+
+		public byte[] call() throws IOException
+		{
+			int blockSize = _Signatures.getBlockSize();
+			MessageDigest digest = DeltaSignatures.createDigest();
+			RollingChecksum checksum = new RollingChecksum();
+			int literalStart = 0;
+			int position = 0;
+			if(_Data.length >= blockSize)
+				checksum.reset(_Data, 0, blockSize);
+
+			while(position + blockSize <= _Data.length)
+			{
+				//only a window whose weak checksum matches is worth the digest
+				int block = -1;
+				int weak = checksum.getValue();
+				if(_Signatures.hasWeak(weak))
+				{
+					digest.update(_Data, position, blockSize);
+					block = _Signatures.find(weak, digest.digest());
+				}
+
+				if(block != -1)
+				{
+					literal(literalStart, position);
+					copy(block, blockSize);
+					position += blockSize;
+					literalStart = position;
+					if(position + blockSize <= _Data.length)
+						checksum.reset(_Data, position, blockSize);
+				}else
+				{
+					if(position + blockSize == _Data.length)
+						break;
+					checksum.roll(_Data[position], _Data[position + blockSize]);
+					position++;
+				}
+			}
+
+			//the receiver's short last block can only be at the very end of what is left
+			int last = _Signatures.getShortBlock();
+			if(last != -1)
+			{
+				int length = _Signatures.getBlockLength(last);
+				int start = _Data.length - length;
+				if(start >= literalStart && RollingChecksum.of(_Data, start, length) == _Signatures.getWeak(last))
+				{
+					digest.update(_Data, start, length);
+					if(Arrays.equals(digest.digest(), _Signatures.getStrong(last)))
+					{
+						literal(literalStart, start);
+						copy(last, length);
+						literalStart = _Data.length;
+					}
+				}
+			}
+
+			literal(literalStart, _Data.length);
+			return _Instructions.toByteArray();
+		}
+
+		private void copy(int block, int length) throws IOException
+		{
+			_Out.writeByte(COPY);
+			_Out.writeInt(block);
+			_MatchedBytes.addAndGet(length);
+		}
+
+		private void literal(int start, int end) throws IOException
+		{
+			if(start == end)
+				return;
+			_Out.writeByte(LITERAL);
+			_Out.writeInt(end - start);
+			_Out.write(_Data, start, end - start);
+			_LiteralBytes.addAndGet(end - start);
+		}
+	}
+}
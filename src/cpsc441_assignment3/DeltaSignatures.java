@@ -0,0 +1,329 @@
+package cpsc441_assignment3;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * DeltaSignatures Class
+ *
+ * The signatures of the copy of a file the receiver already has, for a delta transfer. The copy is cut into blocks of a
+ * fixed size, the last one may be shorter, and every block gets a weak RollingChecksum and a strong MD5 digest. The
+ * receiver computes them and sends them over the control connection, and the sender looks up every window of its own
+ * file by its weak checksum, only computing the digest of windows whose weak checksum matches a block, see DeltaEncoder.
+ *
+ * The copy is hashed on a pool of workers, a few tasks at a time, each taking a run of about TASK_SIZE bytes, so
+ * hashing a large copy is not held up by a single core or by waiting on the disk.
+ *
+ * @author Tyrone
+ */
+public class DeltaSignatures {
+	public static final int MIN_BLOCK_SIZE = 1024; //bytes
+	public static final int MAX_BLOCK_SIZE = 128 * 1024; //bytes
+	public static final int STRONG_SIZE = 16; //bytes, an MD5 digest
+
+	private static final int TASK_SIZE = 1024 * 1024; //bytes
+	private static final int FILTER_BITS = 20;
+
+	private int _BlockSize;
+	private long _FileLength;
+	private int[] _Weak;
+	private byte[][] _Strong;
+	private Map<Integer, Integer> _Index;
+	private int[] _SameWeak;
+	private long[] _Filter;
+
+	private DeltaSignatures(int blockSize, long fileLength) throws IOException
+	{
+		long count = (fileLength + blockSize - 1) / blockSize;
+		if(count > Integer.MAX_VALUE)
+			throw new IOException("Too many blocks for a delta transfer");
+
+		_BlockSize = blockSize;
+		_FileLength = fileLength;
+		_Weak = new int[(int)count];
+		_Strong = new byte[(int)count][];
+	}
+
+	/**
+	 * @param fileLength size of the file to sync (in bytes)
+	 * @return a block size around the square root of the length, which keeps both the signatures and the literals
+	 * resent around a changed byte small
+	 */
+	public static int blockSize(long fileLength)
+	{
+		return clamp((int)Math.min(MAX_BLOCK_SIZE, Math.sqrt(fileLength)) & ~7);
+	}
+
+	/**
+	 * @param blockSize a block size asked for (in bytes)
+	 * @return the nearest size between MIN_BLOCK_SIZE and MAX_BLOCK_SIZE
+	 */
+	public static int clamp(int blockSize)
+	{
+		return Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, blockSize));
+	}
+
+	/**
+	 * @return a new digest computing the strong hash of a block
+	 */
+	public static MessageDigest createDigest()
+	{
+		try{
+			return MessageDigest.getInstance("MD5");
+		}catch(NoSuchAlgorithmException ex)
+		{
+			//every Java platform has to provide MD5
+			throw new IllegalStateException("MD5 is not available", ex);
+		}
+	}
+
+	/**
+	 * hashes every block of a file
+	 *
+	 * @param file the receiver's copy
+	 * @param blockSize size of a block (in bytes)
+	 * @param workers number of runs hashed at once
+	 * @param executor runs the hashing
+	 * @return the signatures of the file
+	 * @throws IOException if the file cannot be read
+	 */
+	public static DeltaSignatures compute(File file, int blockSize, int workers, ExecutorService executor) throws IOException
+	{
+		ArrayDeque<Future<Void>> tasks = new ArrayDeque<Future<Void>>();
+		try(RandomAccessFile input = new RandomAccessFile(file, "r"))
+		{
+			DeltaSignatures signatures = new DeltaSignatures(blockSize, input.length());
+			int blocksPerTask = Math.max(1, TASK_SIZE / blockSize);
+			int first = 0;
+			try{
+				//no more than workers runs in flight, waiting for the oldest to make room
+				while(first < signatures.getBlockCount() || !tasks.isEmpty())
+				{
+					if(first < signatures.getBlockCount() && tasks.size() < workers)
+					{
+						tasks.add(executor.submit(signatures.new Hashing(input.getChannel(), first, Math.min(signatures.getBlockCount(), first + blocksPerTask))));
+						first += blocksPerTask;
+					}else
+						tasks.poll().get();
+				}
+			}catch(InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while hashing", ex);
+			}catch(ExecutionException ex)
+			{
+				throw new IOException("Failed to hash " + file.getName(), ex.getCause());
+			}
+
+			signatures.buildIndex();
+			return signatures;
+		}finally
+		{
+			for(Future<Void> task : tasks)
+				task.cancel(true);
+		}
+	}
+
+	/**
+	 * hashes a run of blocks, each task writes only its own slots of the arrays
+	 */
+	private class Hashing implements Callable<Void> {
+		private FileChannel _Channel;
+		private int _First;
+		private int _End;
+
+		public Hashing(FileChannel channel, int first, int end)
+		{
+			_Channel = channel;
+			_First = first;
+			_End = end;
+		}
+
+		public Void call() throws IOException
+		{
+			long start = (long)_First * _BlockSize;
+			byte[] run = new byte[(int)(Math.min(_FileLength, (long)_End * _BlockSize) - start)];
+
+			//positional reads, the workers share the channel
+			ByteBuffer buffer = ByteBuffer.wrap(run);
+			while(buffer.hasRemaining())
+				if(_Channel.read(buffer, start + buffer.position()) == -1)
+					throw new EOFException("File shrank while hashing");
+
+			MessageDigest digest = createDigest();
+			for(int block = _First; block < _End; block++)
+			{
+				int offset = (block - _First) * _BlockSize;
+				int length = getBlockLength(block);
+				_Weak[block] = RollingChecksum.of(run, offset, length);
+				digest.update(run, offset, length);
+				_Strong[block] = digest.digest();
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * indexes the full size blocks by weak checksum, the short last block is only ever matched at the end of a run of
+	 * the sender's file. A block with the same contents as one already indexed is left out, since either one can be
+	 * copied, and runs of identical blocks (zeroed space in an image) would otherwise make for long chains to search
+	 */
+	private void buildIndex()
+	{
+		_Index = new HashMap<Integer, Integer>();
+		_SameWeak = new int[_Weak.length];
+		Arrays.fill(_SameWeak, -1);
+		_Filter = new long[(1 << FILTER_BITS) / 64];
+		for(int block = 0; block < _Weak.length; block++)
+		{
+			if(getBlockLength(block) != _BlockSize)
+				continue;
+
+			Integer first = _Index.get(_Weak[block]);
+			if(first != null)
+			{
+				if(find(_Weak[block], _Strong[block]) != -1)
+					continue;
+				_SameWeak[block] = first;
+			}
+			_Index.put(_Weak[block], block);
+			_Filter[filterBit(_Weak[block]) >>> 6] |= 1L << filterBit(_Weak[block]);
+		}
+	}
+
+	/**
+	 * @return the bit of a weak checksum in the filter, the top bits of a multiplicative hash of it
+	 */
+	private static int filterBit(int weak)
+	{
+		return (weak * 0x9e3779b1) >>> (32 - FILTER_BITS);
+	}
+
+	/**
+	 * @return true if a full size block has this weak checksum, only then is the strong hash worth computing
+	 */
+	public boolean hasWeak(int weak)
+	{
+		//the sender asks for every byte of its file, most of which match nothing. The filter answers those without
+		//boxing the checksum for the map
+		int bit = filterBit(weak);
+		return (_Filter[bit >>> 6] & (1L << bit)) != 0 && _Index.containsKey(weak);
+	}
+
+	/**
+	 * @param weak weak checksum of a window the size of a block
+	 * @param strong digest of the window
+	 * @return a full size block with the same contents, or -1 if there is none
+	 */
+	public int find(int weak, byte[] strong)
+	{
+		Integer first = _Index.get(weak);
+		for(int block = first == null ? -1 : first; block != -1; block = _SameWeak[block])
+			if(Arrays.equals(_Strong[block], strong))
+				return block;
+		return -1;
+	}
+
+	/**
+	 * @return the last block if it is shorter than the others, or -1 if every block is full size
+	 */
+	public int getShortBlock()
+	{
+		int last = _Weak.length - 1;
+		return last >= 0 && getBlockLength(last) != _BlockSize ? last : -1;
+	}
+
+	public int getWeak(int block)
+	{
+		return _Weak[block];
+	}
+
+	public byte[] getStrong(int block)
+	{
+		return _Strong[block];
+	}
+
+	public int getBlockSize()
+	{
+		return _BlockSize;
+	}
+
+	public int getBlockCount()
+	{
+		return _Weak.length;
+	}
+
+	/**
+	 * @return size of the receiver's copy (in bytes)
+	 */
+	public long getFileLength()
+	{
+		return _FileLength;
+	}
+
+	/**
+	 * @return size of the block (in bytes), the block size for all but the last
+	 */
+	public int getBlockLength(int block)
+	{
+		return (int)Math.min(_BlockSize, _FileLength - (long)block * _BlockSize);
+	}
+
+	/**
+	 * writes the signatures: the block size, the length of the copy, then the weak checksum and the digest of every block
+	 *
+	 * @param out the control connection, left for the caller to flush
+	 * @throws IOException if the connection fails
+	 */
+	public void write(DataOutputStream out) throws IOException
+	{
+		out.writeInt(_BlockSize);
+		out.writeLong(_FileLength);
+		for(int block = 0; block < _Weak.length; block++)
+		{
+			out.writeInt(_Weak[block]);
+			out.write(_Strong[block]);
+		}
+	}
+
+	/**
+	 * reads the signatures the receiver wrote with write
+	 *
+	 * @param in the control connection
+	 * @return the signatures, indexed for lookups
+	 * @throws IOException if the connection fails or the signatures are corrupt
+	 */
+	public static DeltaSignatures read(DataInputStream in) throws IOException
+	{
+		int blockSize = in.readInt();
+		long fileLength = in.readLong();
+		if(blockSize != clamp(blockSize) || fileLength < 0)
+			throw new IOException("Corrupt block signatures");
+
+		DeltaSignatures signatures = new DeltaSignatures(blockSize, fileLength);
+		for(int block = 0; block < signatures.getBlockCount(); block++)
+		{
+			signatures._Weak[block] = in.readInt();
+			signatures._Strong[block] = new byte[STRONG_SIZE];
+			in.readFully(signatures._Strong[block]);
+		}
+		signatures.buildIndex();
+		return signatures;
+	}
+}
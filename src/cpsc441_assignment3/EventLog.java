@@ -0,0 +1,369 @@
+package cpsc441_assignment3;
+
+import java.io.PrintStream;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * EventLog Class
+ *
+ * An asynchronous, leveled event log. Logging an event only claims a slot of a fixed ring, fills in its level, time,
+ * thread, message and sequence number, and publishes it; a background thread formats the events and writes them out.
+ * Nothing is formatted, allocated or written on the logging thread, and no lock is taken, so events can be logged from
+ * the send and ack paths. When the ring is full events are dropped and counted rather than blocking the caller. The
+ * writer collects the lines of consecutive events and writes them with one call. Once it has caught up the writer parks
+ * until the next event is logged, only waking up on its own now and then, less often the longer the log stays idle.
+ *
+ * Events below the level are discarded with a single volatile read. Each level can also be sampled, keeping a random one
+ * in N of its events.
+ *
+ * Events are written as one line each: seconds since the log started, level, thread, message, and the sequence number
+ * if there is one. By default errors and warnings go to System.err and everything else to System.out, both looked up
+ * when the line is written.
+ *
+ * @author Tyrone
+ */
+public class EventLog {
+	public enum Level { DEBUG, INFO, WARN, ERROR }
+
+	private static final int CAPACITY = 1 << 14; //events
+	private static final long NO_SEQ = Long.MIN_VALUE;
+	private static final int BATCH_SIZE = 1 << 16; //chars
+	private static final long IDLE_PARK = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final long MAX_IDLE_PARK = TimeUnit.SECONDS.toNanos(1);
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+	private static final EventLog DEFAULT = new EventLog();
+
+	/**
+	 * a slot of the ring, reused for every event that passes through it
+	 */
+	private static class Event {
+		private long _Time;
+		private Level _Level;
+		private String _Thread;
+		private String _Message;
+		private long _SeqNum;
+		private Throwable _Error;
+	}
+
+	private Event[] _Events;
+	private AtomicLongArray _Sequences;
+	private AtomicLong _Tail;
+	private volatile long _Written;
+	private volatile boolean _WriterParked;
+	private LongAdder _Dropped;
+	private long _DroppedReported;
+	private long _StartTime;
+	private volatile Level _Level;
+	private volatile int[] _SampleRates;
+	private volatile PrintStream _Output;
+	private Thread _Writer;
+
+	/**
+	 * @return the log shared by every class of the project
+	 */
+	public static EventLog getLog()
+	{
+		return DEFAULT;
+	}
+
+	private EventLog()
+	{
+		_Events = new Event[CAPACITY];
+		_Sequences = new AtomicLongArray(CAPACITY);
+		for(int i = 0; i < CAPACITY; i++)
+		{
+			_Events[i] = new Event();
+			_Sequences.set(i, i);
+		}
+		_Tail = new AtomicLong(0);
+		_Written = 0;
+		_WriterParked = false;
+		_Dropped = new LongAdder();
+		_DroppedReported = 0;
+		_StartTime = System.nanoTime();
+		_Level = Level.INFO;
+		_SampleRates = new int[] {1, 1, 1, 1};
+
+		_Writer = new Thread(new Runnable(){
+			public void run()
+			{
+				writeEvents();
+			}
+		}, "EventLog writer");
+		_Writer.setDaemon(true);
+		_Writer.start();
+
+		//whatever is still queued when the program exits gets written
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable(){
+			public void run()
+			{
+				flush();
+			}
+		}));
+	}
+
+	/**
+	 * @param level events below this level are discarded
+	 */
+	public void setLevel(Level level)
+	{
+		_Level = level;
+	}
+
+	/**
+	 * @return true if events of the given level are kept, to skip building an expensive message
+	 */
+	public boolean isEnabled(Level level)
+	{
+		return level.compareTo(_Level) >= 0;
+	}
+
+	/**
+	 * keeps only a random sample of the events of a level
+	 *
+	 * @param level the level to sample
+	 * @param oneIn keep one in this many events, 1 to keep them all
+	 */
+	public void setSampleRate(Level level, int oneIn)
+	{
+		int[] rates = _SampleRates.clone();
+		rates[level.ordinal()] = Math.max(1, oneIn);
+		_SampleRates = rates;
+	}
+
+	/**
+	 * @param output stream every event is written to, or null to split them between System.out and System.err
+	 */
+	public void setOutput(PrintStream output)
+	{
+		_Output = output;
+	}
+
+	/**
+	 * @return the number of events dropped because the ring was full
+	 */
+	public long getDroppedCount()
+	{
+		return _Dropped.sum();
+	}
+
+	public void debug(String message, long seqNum)
+	{
+		log(Level.DEBUG, message, seqNum, null);
+	}
+
+	public void info(String message)
+	{
+		log(Level.INFO, message, NO_SEQ, null);
+	}
+
+	public void info(String message, long seqNum)
+	{
+		log(Level.INFO, message, seqNum, null);
+	}
+
+	public void warn(String message, Throwable error)
+	{
+		log(Level.WARN, message, NO_SEQ, error);
+	}
+
+	public void error(String message)
+	{
+		log(Level.ERROR, message, NO_SEQ, null);
+	}
+
+	public void error(String message, Throwable error)
+	{
+		log(Level.ERROR, message, NO_SEQ, error);
+	}
+
+	/**
+	 * queues an event for the writer thread
+	 *
+	 * @param level importance of the event
+	 * @param message what happened, ideally a constant
+	 * @param seqNum sequence number the event is about, or Long.MIN_VALUE for none
+	 * @param error exception that caused the event, or null
+	 */
+	public void log(Level level, String message, long seqNum, Throwable error)
+	{
+		if(level.compareTo(_Level) < 0)
+			return;
+		int rate = _SampleRates[level.ordinal()];
+		if(rate > 1 && ThreadLocalRandom.current().nextInt(rate) != 0)
+			return;
+
+		//claim the next slot once the writer has released it, each slot's sequence says whose turn it is
+		long position = _Tail.get();
+		while(true)
+		{
+			int index = (int)(position & (CAPACITY - 1));
+			long available = _Sequences.get(index) - position;
+			if(available == 0)
+			{
+				if(_Tail.compareAndSet(position, position + 1))
+				{
+					Event event = _Events[index];
+					event._Time = System.nanoTime();
+					event._Level = level;
+					event._Thread = Thread.currentThread().getName();
+					event._Message = message;
+					event._SeqNum = seqNum;
+					event._Error = error;
+					//a full store, so the writer either sees the event or is seen to be parked
+					_Sequences.set(index, position + 1);
+					wakeWriter();
+					return;
+				}
+				position = _Tail.get();
+			}else if(available < 0)
+			{
+				_Dropped.increment();
+				return;
+			}else
+			{
+				position = _Tail.get();
+			}
+		}
+	}
+
+	/**
+	 * unparks the writer if it parked on an empty ring
+	 */
+	private void wakeWriter()
+	{
+		if(_WriterParked)
+		{
+			_WriterParked = false;
+			LockSupport.unpark(_Writer);
+		}
+	}
+
+	/**
+	 * blocks until every event logged so far has been written
+	 */
+	public void flush()
+	{
+		long tail = _Tail.get();
+		while(_Written < tail && _Writer.isAlive())
+			LockSupport.parkNanos(IDLE_PARK);
+	}
+
+	/**
+	 * the writer thread, takes published events off the ring in order and writes them out in batches
+	 */
+	private void writeEvents()
+	{
+		long head = 0;
+		StringBuilder batch = new StringBuilder();
+		PrintStream batchOutput = null;
+		long idlePark = IDLE_PARK;
+		while(true)
+		{
+			int index = (int)(head & (CAPACITY - 1));
+			if(_Sequences.get(index) != head + 1)
+			{
+				//caught up, write out what we have before waiting for more
+				write(batch, batchOutput);
+				reportDropped();
+				flushOutput();
+				_Written = head;
+
+				//say we are parking before the last look at the ring, an event published after it unparks us. The
+				//timeout is only a fallback, and backs off while nothing is logged
+				_WriterParked = true;
+				if(_Sequences.get(index) != head + 1)
+				{
+					LockSupport.parkNanos(idlePark);
+					idlePark = Math.min(MAX_IDLE_PARK, idlePark * 2);
+				}
+				_WriterParked = false;
+				continue;
+			}
+			idlePark = IDLE_PARK;
+
+			Event event = _Events[index];
+			PrintStream out = outputFor(event._Level);
+			if(out != batchOutput || batch.length() >= BATCH_SIZE)
+			{
+				write(batch, batchOutput);
+				batchOutput = out;
+			}
+			long millis = (event._Time - _StartTime) / 1000000;
+			batch.append(millis / 1000).append('.');
+			appendPadded(batch, millis % 1000);
+			batch.append(' ').append(event._Level).append(" [").append(event._Thread).append("] ").append(event._Message);
+			if(event._SeqNum != NO_SEQ)
+				batch.append(" seq=").append(event._SeqNum);
+			Throwable error = event._Error;
+			event._Thread = null;
+			event._Message = null;
+			event._Error = null;
+
+			//hand the slot back to the producers for its next round
+			_Sequences.lazySet(index, head + CAPACITY);
+			head++;
+
+			if(error != null)
+			{
+				batch.append(": ").append(error);
+				write(batch, batchOutput);
+				error.printStackTrace(out);
+			}else
+			{
+				batch.append(LINE_SEPARATOR);
+			}
+		}
+	}
+
+	private static void appendPadded(StringBuilder batch, long millis)
+	{
+		if(millis < 100)
+			batch.append('0');
+		if(millis < 10)
+			batch.append('0');
+		batch.append(millis);
+	}
+
+	/**
+	 * writes and empties the batch, a batch ending in an exception is finished with a line break
+	 */
+	private void write(StringBuilder batch, PrintStream out)
+	{
+		if(batch.length() == 0)
+			return;
+		if(batch.charAt(batch.length() - 1) == '\n')
+			out.print(batch);
+		else
+			out.println(batch);
+		batch.setLength(0);
+	}
+
+	private void reportDropped()
+	{
+		long dropped = _Dropped.sum();
+		if(dropped == _DroppedReported)
+			return;
+		outputFor(Level.WARN).println("EventLog dropped " + (dropped - _DroppedReported) + " events, the ring was full");
+		_DroppedReported = dropped;
+	}
+
+	private void flushOutput()
+	{
+		outputFor(Level.INFO).flush();
+		outputFor(Level.ERROR).flush();
+	}
+
+	private PrintStream outputFor(Level level)
+	{
+		PrintStream output = _Output;
+		if(output != null)
+			return output;
+		return level.compareTo(Level.WARN) >= 0 ? System.err : System.out;
+	}
+}
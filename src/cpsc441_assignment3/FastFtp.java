@@ -1,18 +1,30 @@
 package cpsc441_assignment3;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
+import java.io.InputStream;
 import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.Timer;
+import java.net.SocketTimeoutException;
+import java.nio.channels.DatagramChannel;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 import cpsc441.a3.Segment;
 import cpsc441.a3.TxQueue;
@@ -33,29 +45,594 @@ import cpsc441.a3.TxQueue;
  */
 public class FastFtp {
 	
-    /**
-     * Constructor to initialize the program 
-     * 
-     * @param windowSize	Size of the window for Go-Back_N (in segments)
-     * @param rtoTimer		The time-out interval for the retransmission timer (in milli-seconds)
-     */
+	public static final long CHECKPOINT_INTERVAL = 1000; //milli-seconds, between checkpoints of a resumable transfer
+	public static final long PACING_FROM_RTT = -1; //pacing rate that follows the window and the minimum round trip time
+	public static final double PACING_GAIN = 1.25; //headroom over window / min rtt, so the window still fills
+	public static final long CONTROL_CHECK_INTERVAL = 250; //milli-seconds, between checks of the control connection on a timeout
 	
-	private Timer _TimeoutTimer;
+	private ScheduledExecutorService _TimerService;
+	private TimeoutHandler _TimeoutTimer;
 	private int _RtoTimeout;
 	private TxQueue _PacketQueue;
 	private Socket _TCPSocket;
 	private DatagramSocket _UDPSocket;
-	private Logger _Logger;
-	private int _NextSegmentNumber;
+	private DatagramChannel _UDPChannel;
+	private MappedFile _MappedFile;
+	private SegmentRing _SegmentRing;
+	private boolean _MappedReads;
+	private BatchTransmitter _Transmitter;
+	private boolean _BatchedSends;
+	private int _PacingBurst;
+	private long _PacingInterval;
+	private long _PacingRate;
+	private Pacer _Pacer;
+	private EventLog _Log;
+	private volatile int _NextSegmentNumber;
 	private ExecutorService _ExecutorService;
+	private ReentrantLock _WindowLock;
+	private Condition _WindowNotFull;
+	private Condition _WindowDrained;
+	private boolean _BlockingWindow;
+	private RetransmissionMode _Mode;
+	private int _WindowSize;
+	private boolean[] _Acked;
+	private TimeoutHandler[] _SegmentTimers;
+	private RttEstimator _RttEstimator;
+	private boolean _AdaptiveRto;
+	private long[] _SendTimes;
+	private boolean[] _Resent;
+	private CongestionWindow _CongestionWindow;
+	private boolean _CongestionControl;
+	private int _ResendNext;
+	private int _RecoverEnd;
+	private long _RangeOffset;
+	private long _RangeLength;
+	private boolean _OwnsServices;
+	private volatile long _AckedSegments;
+	private volatile long _StreamBytes;
+	private volatile boolean _Completed;
+	private boolean _LockFree;
+	private AtomicInteger _CumulativeAck;
+	private AtomicBoolean _TimeoutRequested;
+	private AtomicBoolean _TimerRunning;
+	private volatile long _LastProgress;
+	private volatile Thread _SendingThread;
+	private volatile boolean _SenderParked;
+	private int _DuplicateAckThreshold;
+	private int _DuplicateAcks;
+	private AtomicBoolean _FastRetransmitRequested;
+	private TransferMetrics _Metrics;
+	private long _MetricsInterval;
+	private boolean _JmxMetrics;
+	private boolean _Resumable;
+	private Checkpoint _Checkpoint;
+	private int _CompressionLevel;
+	private boolean _Compressing;
+	private int _RequestedPayloadSize;
+	private int _ReadAheadDepth;
+	private FileSession _Session;
+	private int _InitialSequenceNumber;
+	private int _SlotMask;
+	private volatile boolean _ReceiverClosed;
+	private long _LastControlCheck;
+	private boolean _TimersCancelled;
+	private boolean _DeltaSync;
+	private DeltaSignatures _Signatures;
 	
+    /**
+     * Constructor to initialize the program 
+     * 
+     * @param windowSize	Size of the window for Go-Back_N (in segments)
+     * @param rtoTimer		The time-out interval for the retransmission timer (in milli-seconds)
+     */
 	public FastFtp(int windowSize, int rtoTimer) {
+		this(windowSize, rtoTimer, RetransmissionMode.GO_BACK_N);
+	}
+	
+    /**
+     * Constructor selecting the retransmission strategy. The receiver has to ack in the matching style,
+     * cumulatively for Go-Back-N and per segment for Selective Repeat
+     * 
+     * @param windowSize	Size of the window (in segments)
+     * @param rtoTimer		The time-out interval for the retransmission timer (in milli-seconds)
+     * @param mode			The retransmission strategy to use
+     */
+	public FastFtp(int windowSize, int rtoTimer, RetransmissionMode mode) {
+		this(windowSize, rtoTimer, mode, null, null);
+	}
+	
+    /**
+     * Constructor running the transfer on thread pools shared with other transfers, which send() then leaves running.
+     * The executor needs a free thread for the ack receiver, one for the transmitter with batched sends, and one for the
+     * reading thread with read-ahead. Blocks of a compressed file are deflated, and the chunks of a delta transfer
+     * matched, on the workers shared by every transfer instead, see getWorkerService
+     * 
+     * @param windowSize	Size of the window (in segments)
+     * @param rtoTimer		The time-out interval for the retransmission timer (in milli-seconds)
+     * @param mode			The retransmission strategy to use
+     * @param executor		runs the ack receiver, transmitter and read-ahead, or null for a pool of the transfer's own
+     * @param timerService	runs the retransmission timers, or null for a timer thread of the transfer's own
+     */
+	public FastFtp(int windowSize, int rtoTimer, RetransmissionMode mode, ExecutorService executor, ScheduledExecutorService timerService) {
 
 		this._RtoTimeout = rtoTimer;
 		_PacketQueue = new TxQueue(windowSize);
-		_Logger = Logger.getLogger(this.getClass().getName());
+		_Log = EventLog.getLog();
 		_NextSegmentNumber = 0;
-		_ExecutorService = Executors.newFixedThreadPool(1);
+		_OwnsServices = executor == null;
+		//the ack receiver, the transmitter and the reading thread of read-ahead
+		_ExecutorService = executor != null ? executor : Executors.newFixedThreadPool(3);
+		_WindowLock = new ReentrantLock();
+		_WindowNotFull = _WindowLock.newCondition();
+		_WindowDrained = _WindowLock.newCondition();
+		_BlockingWindow = true;
+		_Mode = mode;
+		_WindowSize = windowSize;
+		_RttEstimator = new RttEstimator(rtoTimer);
+		_AdaptiveRto = true;
+		//arrays indexed by sequence number have a power of two slots, so they stay in order when the numbers wrap around
+		int slots = SequenceNumber.slots(windowSize);
+		_SlotMask = slots - 1;
+		_SendTimes = new long[slots];
+		_Resent = new boolean[slots];
+		_SegmentRing = new SegmentRing(windowSize);
+		_CongestionWindow = new CongestionWindow(windowSize);
+		_CongestionControl = false;
+		_MappedReads = false;
+		_BatchedSends = false;
+		_PacingRate = 0;
+		_Pacer = null;
+		_ResendNext = 0;
+		_RecoverEnd = 0;
+		_RangeOffset = 0;
+		_RangeLength = -1;
+		
+		_AckedSegments = 0;
+		_StreamBytes = 0;
+		_Completed = false;
+		_LockFree = false;
+		_CumulativeAck = new AtomicInteger(0);
+		_TimeoutRequested = new AtomicBoolean(false);
+		_TimerRunning = new AtomicBoolean(false);
+		_DuplicateAckThreshold = 0;
+		_DuplicateAcks = 0;
+		_FastRetransmitRequested = new AtomicBoolean(false);
+		_Metrics = new TransferMetrics(this);
+		_MetricsInterval = 0;
+		_JmxMetrics = false;
+		_Resumable = false;
+		_Checkpoint = null;
+		_CompressionLevel = 0;
+		_Compressing = false;
+		_RequestedPayloadSize = PayloadSize.DEFAULT;
+		_ReadAheadDepth = 0;
+		_Session = null;
+		_InitialSequenceNumber = 0;
+		_ReceiverClosed = false;
+		_LastControlCheck = System.nanoTime();
+		_TimersCancelled = false;
+		_DeltaSync = false;
+		_Signatures = null;
+		
+		//every timer of the transfer runs off this one thread
+		_TimerService = timerService != null ? timerService : createTimerService();
+		_TimeoutTimer = new TimeoutHandler(this, _TimerService);
+		
+		//selective repeat tracks every segment in the window individually, indexed by sequence number modulo the slots
+		if(_Mode == RetransmissionMode.SELECTIVE_REPEAT)
+		{
+			_Acked = new boolean[slots];
+			_SegmentTimers = new TimeoutHandler[slots];
+			for(int i = 0; i < slots; i++)
+				_SegmentTimers[i] = new TimeoutHandler(this, _TimerService);
+		}
+	}
+	
+	/**
+	 * @return a scheduler with a single daemon thread, suitable for running the timers of one or more transfers
+	 */
+	public static ScheduledExecutorService createTimerService()
+	{
+		return Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable task)
+			{
+				Thread thread = new Thread(task, "FastFtp timer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * @return the pool compression, delta matching and the hashing of the receiver's copy run on, one daemon thread per processor, shared by every transfer so that CPU bound
+	 * work never takes more threads than there are processors
+	 */
+	static ExecutorService getWorkerService()
+	{
+		return Workers.POOL;
+	}
+	
+	//only started by the first transfer that needs it
+	private static class Workers {
+		private static final ExecutorService POOL = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory(){
+			public Thread newThread(Runnable task)
+			{
+				Thread thread = new Thread(task, "FastFtp worker");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * Selects how send() waits on a full window and on the final drain. In blocking mode (the default) the
+	 * sending thread parks until processACK frees space, otherwise it spins on Thread.yield()
+	 * 
+	 * @param blocking true to park the sending thread, false to spin
+	 */
+	public void setBlockingWindow(boolean blocking)
+	{
+		_BlockingWindow = blocking;
+	}
+	
+	/**
+	 * Selects the lock free window, Go-Back-N only and ignored together with batched sends. The ack thread then only
+	 * advances an atomic cumulative ack and the timer only flags a timeout, while the sending thread alone writes the
+	 * segment ring, sends, resends and reclaims slots. Nothing on the path of a segment or an ack takes our lock
+	 * 
+	 * @param enabled true for the lock free window, false to share the FastFtp monitor between the threads
+	 */
+	public void setLockFreeWindow(boolean enabled)
+	{
+		_LockFree = enabled;
+	}
+	
+	/**
+	 * Enables fast retransmit. Once the given number of acks in a row acknowledge nothing new, the oldest unacknowledged
+	 * segment is resent right away instead of waiting for its timeout. In Selective Repeat mode these are acks for
+	 * segments past the oldest unacknowledged one
+	 * 
+	 * @param duplicateAcks number of acks that trigger the resend, or 0 to only ever resend on a timeout
+	 */
+	public void setFastRetransmit(int duplicateAcks)
+	{
+		_DuplicateAckThreshold = duplicateAcks;
+	}
+	
+	/**
+	 * Prints the metrics of the transfer as a single line of key=value pairs at a fixed interval while sending, and once
+	 * more at the end
+	 * 
+	 * @param interval time between reports (in milli-seconds), or 0 for no reports
+	 */
+	public void setMetricsReport(long interval)
+	{
+		_MetricsInterval = interval;
+	}
+	
+	/**
+	 * Registers the metrics of the transfer as a TransferMetrics MBean with the platform MBean server while sending
+	 * 
+	 * @param enabled true to register the metrics over JMX
+	 */
+	public void setJmxMetrics(boolean enabled)
+	{
+		_JmxMetrics = enabled;
+	}
+	
+	/**
+	 * @return the counters and gauges of the transfer
+	 */
+	public TransferMetrics getMetrics()
+	{
+		return _Metrics;
+	}
+	
+	/**
+	 * Enables congestion control. The window size then only caps a congestion window that starts small, grows with
+	 * slow start and additive increase, and drops back to one segment on a timeout
+	 * 
+	 * @param enabled true to limit the window to the congestion window, false to always use the full window
+	 */
+	public void setCongestionControl(boolean enabled)
+	{
+		_CongestionControl = enabled;
+	}
+	
+	/**
+	 * @return the congestion window, including its history. Only updated when congestion control is enabled
+	 */
+	public CongestionWindow getCongestionWindow()
+	{
+		return _CongestionWindow;
+	}
+	
+	/**
+	 * Selects how the file is read. Memory mapped reads send every datagram straight from a mapping of the file
+	 * through a DatagramChannel, and read retransmissions back from the mapping instead of holding payloads in the queue.
+	 * Meant for large files
+	 * 
+	 * @param mapped true to memory map the file, false to read it through a stream
+	 */
+	public void setMappedReads(boolean mapped)
+	{
+		_MappedReads = mapped;
+	}
+	
+	/**
+	 * Selects batched sending. Segments are then only recorded as ready while FastFtp holds its lock, and a
+	 * BatchTransmitter thread writes everything recorded so far to a DatagramChannel in one burst
+	 * 
+	 * @param batched true to write datagrams in bursts from their own thread, false to write each one as it is sent
+	 */
+	public void setBatchedSends(boolean batched)
+	{
+		_BatchedSends = batched;
+	}
+	
+	/**
+	 * Paces batched sends, only used together with setBatchedSends(true)
+	 * 
+	 * @param burstSize number of datagrams written back to back, or 0 for no limit
+	 * @param interval pause after each burst (in micro-seconds)
+	 */
+	public void setPacing(int burstSize, long interval)
+	{
+		_PacingBurst = burstSize;
+		_PacingInterval = interval;
+	}
+	
+	/**
+	 * Spreads the datagrams evenly at a target rate instead of writing a window's worth back to back, so a burst does not
+	 * overflow the queue of a slower link on the way or the receiver's socket buffer. Every datagram, resent ones
+	 * included, waits for its turn on the BatchTransmitter thread, so pacing selects batched sending. With
+	 * PACING_FROM_RTT the rate is PACING_GAIN times the window over the minimum round trip time, and sends are not paced
+	 * until the first round trip is measured. The smoothed round trip time would include the time segments wait for the
+	 * pacer, and slow the rate down further the longer they wait
+	 * 
+	 * @param bytesPerSecond the rate (in bytes per second), PACING_FROM_RTT, or 0 not to pace
+	 */
+	public void setPacingRate(long bytesPerSecond)
+	{
+		_PacingRate = bytesPerSecond;
+		if(bytesPerSecond != 0)
+			_BatchedSends = true;
+	}
+	
+	/**
+	 * @return the rate datagrams are currently paced at (in bytes per second), or Double.POSITIVE_INFINITY if they are not
+	 */
+	public double getPacingRate()
+	{
+		if(_PacingRate > 0)
+			return _PacingRate;
+		double minRtt = _RttEstimator.getMinRtt();
+		if(_PacingRate == 0 || minRtt <= 0)
+			return Double.POSITIVE_INFINITY;
+		return PACING_GAIN * windowLimit() * (PayloadSize.HEADER_SIZE + getPayloadSize()) * 1000 / minRtt;
+	}
+	
+	/**
+	 * @return total time datagrams waited for their turn to be sent (in milli-seconds), 0 when not pacing
+	 */
+	public long getPacingDelay()
+	{
+		return _Pacer == null ? 0 : TimeUnit.NANOSECONDS.toMillis(_Pacer.getWaitTime());
+	}
+	
+	/**
+	 * Sends only a range of the file, to be written at the same offset by the receiver. Needs the extended handshake,
+	 * so only works against FastFtpServer
+	 * 
+	 * @param offset where the range starts in the file (in bytes)
+	 * @param length number of bytes to send
+	 */
+	public void setRange(long offset, long length)
+	{
+		_RangeOffset = offset;
+		_RangeLength = length;
+	}
+	
+	/**
+	 * Makes the transfer resumable. How far the receiver has acknowledged the file is saved to a checkpoint next to it
+	 * every CHECKPOINT_INTERVAL and when the transfer fails. A later send() of the unchanged file asks the receiver to
+	 * resume from the checkpoint, and only sends the rest. Resuming needs the extended handshake, so only works against
+	 * FastFtpServer, and does not apply to ranges
+	 * 
+	 * @param resumable true to checkpoint the transfer and resume from an earlier checkpoint
+	 */
+	public void setResumable(boolean resumable)
+	{
+		_Resumable = resumable;
+	}
+	
+	/**
+	 * Compresses the file while sending it. The file is deflated in blocks by the shared pool of workers ahead of the
+	 * window, and the compressed stream is sent in place of the file. Needs the extended handshake, so only works against
+	 * FastFtpServer, which may decline. Does not apply to ranges and resumable transfers, and replaces memory mapped reads
+	 * 
+	 * @param level deflate level from 1 (fastest) to 9 (smallest), or 0 to send the file as it is
+	 */
+	public void setCompression(int level)
+	{
+		_CompressionLevel = level;
+	}
+	
+	/**
+	 * Reads the file ahead of the window on a thread of its own, so the sending thread finds the next payload already in
+	 * memory when an ack opens the window, and the file keeps being read while the window is full. Only applies to files
+	 * read through a stream, memory mapped reads are never read ahead
+	 * 
+	 * @param depth number of payloads read ahead, or 0 to read the file on the sending thread
+	 */
+	public void setReadAhead(int depth)
+	{
+		_ReadAheadDepth = depth;
+	}
+	
+	/**
+	 * Only sends what changed against the copy of the file the receiver already has. The receiver hashes its copy in
+	 * blocks and sends the signatures back over the control connection, and the shared pool of workers looks for those
+	 * blocks in the file ahead of the window, so a block the receiver has is sent as its index and only the bytes in
+	 * between go out as they are. Needs the extended handshake, so only works against FastFtpServer, which sends the
+	 * whole file if it has no copy yet. Does not apply to ranges and resumable transfers, and replaces memory mapped reads and compression
+	 * 
+	 * @param enabled true to sync against the receiver's copy, false to always send the whole file
+	 */
+	public void setDeltaSync(boolean enabled)
+	{
+		_DeltaSync = enabled;
+	}
+	
+	/**
+	 * Asks the receiver for another payload size than Segment.MAX_PAYLOAD_SIZE, to send fewer datagrams on links with a
+	 * larger MTU. The receiver may lower it. Any other size needs the extended handshake, so only works against
+	 * FastFtpServer
+	 * 
+	 * @param size payload of a datagram (in bytes), between PayloadSize.MIN and PayloadSize.MAX, or 0 for the largest
+	 * that fits the MTU of the interface the transfer goes out on
+	 */
+	public void setPayloadSize(int size)
+	{
+		_RequestedPayloadSize = size;
+	}
+	
+	/**
+	 * Numbers the segments from seqNum instead of 0. Sequence numbers are serial numbers that wrap around from
+	 * Integer.MAX_VALUE to 0, see SequenceNumber, so a file may take up more segments than there are sequence numbers. Any
+	 * other start than 0 needs the extended handshake, so only works against FastFtpServer. A file of a FileSession starts
+	 * where the session's previous file ended
+	 * 
+	 * @param seqNum sequence number of the first segment, from 0 to Integer.MAX_VALUE
+	 */
+	public void setInitialSequenceNumber(int seqNum)
+	{
+		if(seqNum < 0)
+			throw new IllegalArgumentException("Negative sequence number");
+		
+		_InitialSequenceNumber = seqNum;
+		_NextSegmentNumber = seqNum;
+		_CumulativeAck.set(seqNum);
+		_ResendNext = seqNum;
+		_RecoverEnd = seqNum;
+	}
+	
+	/**
+	 * @return the payload size send() will ask the receiver for (in bytes), the default when it is left to probe the MTU
+	 * since the interface is only known once connected
+	 */
+	int getRequestedPayloadSize()
+	{
+		return _RequestedPayloadSize == 0 ? PayloadSize.DEFAULT : PayloadSize.clamp(_RequestedPayloadSize);
+	}
+	
+	/**
+	 * @return the payload of every segment but the last (in bytes), as agreed with the receiver once send() has connected
+	 */
+	public int getPayloadSize()
+	{
+		return _SegmentRing.getPayloadSize();
+	}
+	
+	/**
+	 * Selects whether the retransmission timeout adapts to the measured round trip time (the default), starting from
+	 * rtoTimer, or stays fixed at rtoTimer
+	 * 
+	 * @param adaptive true to estimate the timeout, false to always use rtoTimer
+	 */
+	public void setAdaptiveRto(boolean adaptive)
+	{
+		_AdaptiveRto = adaptive;
+	}
+	
+	/**
+	 * @return the timeout (in milli-seconds) the next retransmission timer will be armed with
+	 */
+	public long getRto()
+	{
+		return _AdaptiveRto ? _RttEstimator.getRto() : _RtoTimeout;
+	}
+	
+	/**
+	 * @return the smoothed round trip time (in milli-seconds), or 0 before the first measurement
+	 */
+	public double getSmoothedRtt()
+	{
+		return _RttEstimator.getSmoothedRtt();
+	}
+	
+	/**
+	 * @return the number of segments at the start of the file (or range) the receiver has acknowledged so far
+	 */
+	public long getAckedSegmentCount()
+	{
+		return _AckedSegments;
+	}
+	
+	/**
+	 * @return the number of bytes of the stream the receiver has acknowledged so far. The stream is the file (or range)
+	 * itself, or the compressed or delta stream sent in its place, which can be much shorter than the file
+	 */
+	public long getAckedBytes()
+	{
+		//every segment but the last is full, and the last is only counted once the stream has been read to its end
+		return Math.min(_StreamBytes, _AckedSegments * getPayloadSize());
+	}
+	
+	/**
+	 * @return true once send() has delivered the whole file (or range) and ended the transmission
+	 */
+	public boolean isCompleted()
+	{
+		return _Completed;
+	}
+	
+	/**
+	 * @return the number of segments that have been resent, because of a timeout or a fast retransmit
+	 */
+	public long getRetransmissionCount()
+	{
+		return _Metrics.getSegmentsRetransmitted();
+	}
+	
+	/**
+	 * @return the number of times duplicate acks triggered a resend before the timeout
+	 */
+	public long getFastRetransmitCount()
+	{
+		return _Metrics.getFastRetransmits();
+	}
+	
+	/**
+	 * @return the sequence number of the next segment, once send() has returned the one after the file's last segment
+	 */
+	int getNextSequenceNumber()
+	{
+		return _NextSegmentNumber;
+	}
+	
+	/**
+	 * @return true if only a range of the file is sent
+	 */
+	boolean isRange()
+	{
+		return _RangeLength >= 0;
+	}
+	
+	/**
+	 * @return true if the transfer checkpoints and resumes
+	 */
+	boolean isResumable()
+	{
+		return _Resumable;
+	}
+	
+	/**
+	 * @return the number of segments sent but not acknowledged yet
+	 */
+	int getWindowOccupancy()
+	{
+		return SequenceNumber.distance(SequenceNumber.add(_InitialSequenceNumber, _AckedSegments), _NextSegmentNumber);
 	}
 
     /**
@@ -70,180 +647,1055 @@ public class FastFtp {
      * @param fileName		Name of the file to be trasferred to the remote server
      */
 	public void send(String serverName, int serverPort, String fileName) {	
-		int amountRead;
-		byte[] fileInput = new byte[Segment.MAX_PAYLOAD_SIZE];
-		byte[] extraBuffer;
 		File file = new File(fileName);
-		Segment segmentToSend;
+		if(_Session != null)
+			setInitialSequenceNumber(_Session.getSequenceBase());
+		if(_Mode != RetransmissionMode.GO_BACK_N || _BatchedSends)
+			_LockFree = false;
+		_SendingThread = Thread.currentThread();
+		_Checkpoint = _Resumable && _RangeLength < 0 ? new Checkpoint(file) : null;
 		
 		//initialize TCP connection
 		if (TcpHandshake(serverName, serverPort, fileName))
 		{
+			ReceiverThread receiver = null;
+			ScheduledFuture<?> report = null;
+			ScheduledFuture<?> checkpoints = null;
 			try{
 				//create UDP socket
-				_UDPSocket = new DatagramSocket(_TCPSocket.getLocalPort());			
-				ReceiverThread receiver = new ReceiverThread(_UDPSocket, this);
-				_ExecutorService.execute(receiver);
-
-				DataInputStream inStream = new DataInputStream(new FileInputStream(file));
-	
-				//while theres more to read
-				while((amountRead = inStream.read(fileInput)) != -1)
+				if(_Session != null)
 				{
-					//if we didn't read a full MAX_PAYLOAD_SIZE in bytes, adjust the size of the buffer accordingly
-					if(amountRead < Segment.MAX_PAYLOAD_SIZE)
-					{
-						extraBuffer = new byte[amountRead];
-						System.arraycopy(fileInput, 0, extraBuffer, 0, amountRead);	
-						segmentToSend = new Segment(_NextSegmentNumber++, extraBuffer);
-					}else
+					_UDPChannel = _Session.getChannel();
+					_UDPSocket = _UDPChannel.socket();
+				}else if(_MappedReads || _BatchedSends)
+				{
+					//the receiver thread reads acks through the channel's socket while segments are written to the channel.
+					//The socket adaptor needs the channel in blocking mode, which only ever blocks whoever writes
+					_UDPChannel = DatagramChannel.open();
+					_UDPChannel.bind(new InetSocketAddress(_TCPSocket.getLocalPort()));
+					_UDPChannel.connect(new InetSocketAddress(_TCPSocket.getInetAddress(), _TCPSocket.getPort()));
+					_UDPSocket = _UDPChannel.socket();
+				}else
+				{
+					_UDPSocket = new DatagramSocket(_TCPSocket.getLocalPort());
+				}
+				_SegmentRing.setDestination(_TCPSocket.getInetAddress(), _TCPSocket.getPort());
+				_Metrics.start();
+				if(_JmxMetrics)
+					_Metrics.register(file.getName() + ":" + _TCPSocket.getLocalPort());
+				if(_MetricsInterval > 0)
+					report = _TimerService.scheduleAtFixedRate(new Runnable(){
+						public void run()
+						{
+							logMetrics();
+						}
+					}, _MetricsInterval, _MetricsInterval, TimeUnit.MILLISECONDS);
+				if(_Checkpoint != null)
+					checkpoints = _TimerService.scheduleAtFixedRate(new Runnable(){
+						public void run()
+						{
+							saveCheckpoint();
+						}
+					}, CHECKPOINT_INTERVAL, CHECKPOINT_INTERVAL, TimeUnit.MILLISECONDS);
+				if(_Session != null)
+				{
+					_Session.getReceiver().setParent(this);
+				}else
+				{
+					receiver = new ReceiverThread(_UDPSocket, this);
+					_ExecutorService.execute(receiver);
+				}
+				if(_BatchedSends)
+				{
+					_Transmitter = new BatchTransmitter(this);
+					_Transmitter.setPacing(_PacingBurst, _PacingInterval);
+					if(_PacingRate != 0)
 					{
-						//otherwise just create a segment
-						segmentToSend = new Segment(_NextSegmentNumber++, fileInput);
+						_Pacer = new Pacer(getPacingRate());
+						_Transmitter.setPacer(_Pacer);
 					}
-					
-					while(_PacketQueue.isFull())
-						Thread.yield();
-					
-					processSend(segmentToSend);
+					_ExecutorService.execute(_Transmitter);
 				}
+
+				if(_MappedReads && !_Compressing && _Signatures == null)
+					streamMappedFile(file);
+				else
+					streamFile(file);
 				
 				//wait for packets to send
-				while(!_PacketQueue.isEmpty())
-					Thread.yield();
-				
-				
-				//clean up
-				receiver.shutdown();
-				_ExecutorService.shutdown();
-				System.out.println("Sent cancel signal to receiver.");
-				
-				inStream.close();
+				awaitWindowDrained();
 				
 				//As we are on localhost, server shuts down the sockets otherwise I'd close sockets here
 				endTransmission();
-				System.out.println("Sent server shutdown signal. Server will close sockets.");
+				_Log.info("Sent server shutdown signal. Server will close sockets.");
+				_Completed = true;
 		
 			}catch(Exception ex)
 			{
-				System.out.println(ex.getMessage());
+				_Log.error("Transfer failed: " + (_ReceiverClosed ? "the receiver ended the transfer" : ex.getMessage()));
+			}finally
+			{
+				//clean up, also after a failure so threads of a shared pool are handed back
+				_Metrics.stop();
+				if(report != null)
+				{
+					report.cancel(false);
+					logMetrics();
+				}
+				_Metrics.unregister();
+				if(checkpoints != null)
+					checkpoints.cancel(false);
+				if(_Checkpoint != null)
+				{
+					if(_Completed)
+						_Checkpoint.delete();
+					else
+						saveCheckpoint();
+				}
+				if(_Transmitter != null)
+					_Transmitter.shutdown();
+				if(receiver != null)
+					receiver.shutdown();
+				if(_Session != null)
+					_Session.getReceiver().setParent(null);
+				cancelTimers();
+				//the receiver closing the connection woke the sending thread with an interrupt, a session's thread goes on
+				if(_ReceiverClosed)
+					Thread.interrupted();
+				if(_OwnsServices)
+				{
+					_ExecutorService.shutdown();
+					_TimerService.shutdownNow();
+				}
+				_Log.info("Sent cancel signal to receiver.");
+				
+				try{
+					if(_MappedFile != null)
+						_MappedFile.close();
+				}catch(IOException ex)
+				{
+					_Log.warn("Failed to close mapped file", ex);
+				}
+				
+				//our own UDP socket still has the receiver blocked on it, closing it lets the receiver thread exit. A
+				//session's socket stays open for its next file
+				if(_UDPSocket != null && _Session == null)
+					_UDPSocket.close();
+			}
+		}else
+		{
+			_Log.error("Failed to initialize TCP Handshake");
+		}
+	}
+	
+	/**
+	 * records the offset of the first byte the receiver has not acknowledged yet in the checkpoint
+	 */
+	private void saveCheckpoint()
+	{
+		long acked = Math.min(_RangeLength, _AckedSegments * getPayloadSize());
+		try{
+			_Checkpoint.save(_RangeOffset + acked);
+		}catch(IOException ex)
+		{
+			_Log.warn("Failed to save checkpoint", ex);
+		}
+	}
+	
+	/**
+	 * logs the current metrics of the transfer as one line
+	 */
+	private void logMetrics()
+	{
+		_Log.info("metrics " + _Metrics.report());
+	}
+	
+	/**
+	 * disarms every retransmission timer, their tasks may still be pending on a shared scheduler
+	 */
+	private synchronized void cancelTimers()
+	{
+		_TimersCancelled = true;
+		_TimeoutTimer.cancel();
+		if(_SegmentTimers != null)
+			for(TimeoutHandler timer : _SegmentTimers)
+				timer.cancel();
+	}
+	
+	/**
+	 * reads the file through a stream and sends it segment by segment as the window allows. Each payload is read straight
+	 * into its slot of the segment ring, which can only be reused once there is room in the window
+	 * 
+	 * @param file the file to send
+	 * @throws IOException if the file cannot be read
+	 * @throws InterruptedException if the sending thread is interrupted while waiting on the window
+	 */
+	private void streamFile(File file) throws IOException, InterruptedException
+	{
+		Segment segmentToSend;
+		FileInputStream fileStream = new FileInputStream(file);
+		fileStream.getChannel().position(_RangeOffset);
+		InputStream inStream = _ReadAheadDepth > 0 ? new ReadAhead(fileStream, getPayloadSize(), _ReadAheadDepth, _ExecutorService) : new BufferedInputStream(fileStream);
+		DeltaEncoder delta = null;
+		if(_Signatures != null)
+			inStream = delta = new DeltaEncoder(inStream, _Signatures, Runtime.getRuntime().availableProcessors(), getWorkerService());
+		else if(_Compressing)
+			inStream = new BlockCompressor(inStream, _CompressionLevel, Runtime.getRuntime().availableProcessors(), getWorkerService());
+		long remaining = _RangeLength < 0 ? Long.MAX_VALUE : _RangeLength;
+		
+		try{
+			awaitWindowSpace();
+			
+			//while theres more to read
+			while(remaining > 0 && (segmentToSend = _SegmentRing.fill(_NextSegmentNumber, inStream, (int)Math.min(remaining, getPayloadSize()))) != null)
+			{
+				//sending the segment moves _NextSegmentNumber past it
+				int length = _SegmentRing.getPayloadLength(_NextSegmentNumber);
+				remaining -= length;
+				_StreamBytes += length;
+				sendNext(segmentToSend);
+				awaitWindowSpace();
+			}
+			
+			if(delta != null)
+				_Log.info("Delta sync copied " + delta.getMatchedBytes() + " of " + file.length()
+						+ " bytes from the receiver's copy, sent " + delta.getLiteralBytes() + " bytes as they are");
+		}finally
+		{
+			inStream.close();
+		}
+	}
+	
+	/**
+	 * maps the file and sends it segment by segment as the window allows. The queued segments only carry a sequence
+	 * number, their payload is read from the mapping whenever they are (re)sent
+	 * 
+	 * @param file the file to send
+	 * @throws IOException if the file cannot be mapped
+	 * @throws InterruptedException if the sending thread is interrupted while waiting on the window
+	 */
+	private void streamMappedFile(File file) throws IOException, InterruptedException
+	{
+		_MappedFile = new MappedFile(file, _RangeOffset, _RangeLength, getPayloadSize());
+		_MappedFile.setInitialSequenceNumber(_InitialSequenceNumber);
+		long segmentCount = _MappedFile.getSegmentCount();
+		//the payloads are only read when sent, the stream is the mapped file (or range) as a whole
+		_StreamBytes = _RangeLength < 0 ? file.length() - _RangeOffset : _RangeLength;
+		
+		for(long sent = 0; sent < segmentCount; sent++)
+		{
+			awaitWindowSpace();
+			sendNext(_SegmentRing.mark(_NextSegmentNumber));
+		}
+	}
+	
+	/**
+	 * sends the file as the next file of a session, over the session's open connection and socket
+	 * 
+	 * @param session the open session
+	 * @param fileName name of the file to be transferred to the remote server
+	 */
+	void send(FileSession session, String fileName)
+	{
+		_Session = session;
+		send(null, 0, fileName);
+	}
+	
+	/**
+	 * points the sender at an already open UDP socket without a TCP handshake, so the send, ack and timeout paths
+	 * can be driven directly. Used by the benchmarks
+	 * 
+	 * @param socket socket segments are sent through
+	 * @param address address segments are sent to
+	 * @param port port segments are sent to
+	 */
+	void attach(DatagramSocket socket, InetAddress address, int port)
+	{
+		_UDPSocket = socket;
+		_SegmentRing.setDestination(address, port);
+	}
+	
+	/**
+	 * ends the transmission by writing a 0 to the TCP connection to inform the server we are done
+	 */
+	private void endTransmission()
+	{
+		DataOutputStream outputStream;
+		
+		try{
+			outputStream = new DataOutputStream(_TCPSocket.getOutputStream());
+			outputStream.writeByte(0);
+		}catch(Exception ex)
+		{
+			_Log.error("Failed to end transmission", ex);
+		}
+	}
+	
+	/**
+	 * blocks the sending thread until there is room in the window for another segment
+	 * 
+	 * @throws InterruptedException if the sending thread is interrupted while parked
+	 */
+	private void awaitWindowSpace() throws InterruptedException
+	{
+		if(_LockFree)
+		{
+			awaitLockFreeWindow(false);
+			return;
+		}
+		
+		if(!_BlockingWindow)
+		{
+			while(isWindowFull())
+				spin();
+			return;
+		}
+		
+		_WindowLock.lock();
+		try{
+			while(isWindowFull())
+				_WindowNotFull.await();
+		}finally
+		{
+			_WindowLock.unlock();
+		}
+	}
+	
+	/**
+	 * @return true if no more segments may be sent, either because the queue is full or because the congestion window is
+	 */
+	private boolean isWindowFull()
+	{
+		if(_CongestionControl)
+			return _PacketQueue.size() >= _CongestionWindow.getWindow();
+		return _PacketQueue.isFull();
+	}
+	
+	/**
+	 * blocks the sending thread until every segment in the window has been acknowledged
+	 * 
+	 * @throws InterruptedException if the sending thread is interrupted while parked
+	 */
+	private void awaitWindowDrained() throws InterruptedException
+	{
+		if(_LockFree)
+		{
+			awaitLockFreeWindow(true);
+			return;
+		}
+		
+		if(!_BlockingWindow)
+		{
+			while(!_PacketQueue.isEmpty())
+				spin();
+			return;
+		}
+		
+		_WindowLock.lock();
+		try{
+			while(!_PacketQueue.isEmpty())
+				_WindowDrained.await();
+		}finally
+		{
+			_WindowLock.unlock();
+		}
+	}
+	
+	/**
+	 * wakes the sending thread after an ack has freed space in the window. The drain condition is only
+	 * signalled once the queue is empty
+	 */
+	private void signalWindow()
+	{
+		_WindowLock.lock();
+		try{
+			_WindowNotFull.signal();
+			if(_PacketQueue.isEmpty())
+				_WindowDrained.signal();
+		}finally
+		{
+			_WindowLock.unlock();
+		}
+	}
+	
+	/**
+	 * sends the next segment of the file through the lock free or the locked window
+	 */
+	private void sendNext(Segment seg)
+	{
+		if(_LockFree)
+			sendLockFree(seg);
+		else
+			processSend(seg);
+	}
+	
+	/**
+	 * Handles the sending of a segment over the initialized UDP connection
+	 * 
+	 * @param seg The segment needing to be sent. Segments that do not come from the segment ring are copied into it
+	 */
+	public synchronized void processSend(Segment seg)
+	{
+		try{
+			if(_MappedFile == null)
+				seg = _SegmentRing.put(seg);
+			
+			//acks are only accepted up to the last segment sent, which covers segments handed in without going through send()
+			if(!SequenceNumber.isBefore(seg.getSeqNum(), _NextSegmentNumber))
+				_NextSegmentNumber = SequenceNumber.add(seg.getSeqNum(), 1);
+			
+			int index = seg.getSeqNum() & _SlotMask;
+			if(_Mode == RetransmissionMode.SELECTIVE_REPEAT)
+				_Acked[index] = false;
+			_SendTimes[index] = System.nanoTime();
+			_Resent[index] = false;
+			
+			sendSegment(seg);
+			_PacketQueue.add(seg);
+			if(_Mode == RetransmissionMode.SELECTIVE_REPEAT)
+			{
+				startSegmentTimer(seg);
+			}else if(_PacketQueue.size() == 1)
+			{
+				startTimer();
 			}
-		}else
+		}catch(Exception ex)
 		{
-			_Logger.log(Level.SEVERE, "Failed to initialize TCP Handshake");
+			_Log.error("failed to send packet", ex);
 		}
 	}
 	
 	/**
-	 * ends the transmission by writing a 0 to the TCP connection to inform the server we are done
+	 * writes a single segment to the UDP socket, addressed to the server, from its pre-encoded packet in the segment ring
+	 * 
+	 * @param seg the segment to send
+	 * @throws IOException if the datagram could not be sent
 	 */
-	private void endTransmission()
+	private void sendSegment(Segment seg) throws IOException
 	{
-		DataOutputStream outputStream;
+		if(_Transmitter != null)
+		{
+			//the slot cannot be refilled until the transmitter has written it, see transmit
+			_SegmentRing.retain(seg.getSeqNum());
+			_Transmitter.enqueue(seg.getSeqNum());
+			return;
+		}
 		
+		long start = System.nanoTime();
+		if(_MappedFile != null)
+			_MappedFile.send(seg.getSeqNum(), _UDPChannel);
+		else
+			_UDPSocket.send(_SegmentRing.getPacket(seg.getSeqNum()));
+		_Metrics.segmentSent(System.nanoTime() - start);
+	}
+	
+	/**
+	 * writes a segment recorded by the BatchTransmitter. Runs on the transmitter thread without holding our lock. The
+	 * slot was retained when the segment was recorded, so it cannot be refilled while it is written, and a segment whose
+	 * slot had already been reused for a later segment before it was recorded is skipped
+	 * 
+	 * @param seqNum sequence number of the segment to write
+	 */
+	void transmit(int seqNum)
+	{
 		try{
-			outputStream = new DataOutputStream(_TCPSocket.getOutputStream());
-			outputStream.writeByte(0);
+			long start = System.nanoTime();
+			if(_MappedFile != null)
+				_MappedFile.send(seqNum, _UDPChannel);
+			else if(_SegmentRing.getSegment(seqNum).getSeqNum() == seqNum)
+				_UDPChannel.write(_SegmentRing.getBuffer(seqNum));
+			else
+				return;
+			_Metrics.segmentSent(System.nanoTime() - start);
 		}catch(Exception ex)
 		{
-			_Logger.log(Level.SEVERE, "Failed to end transmission", ex);
+			_Log.error("failed to send packet", ex);
+		}finally
+		{
+			_SegmentRing.release(seqNum);
 		}
 	}
 	
 	/**
-	 * Handles the sending of a segment over the initialized UDP connection
+	 * gives up the processor while the sending thread waits without parking
 	 * 
-	 * @param seg The segment needing to be sent
+	 * @throws InterruptedException if the sending thread was interrupted, as it is when the receiver ends the transfer
 	 */
-	public synchronized void processSend(Segment seg)
+	private void spin() throws InterruptedException
+	{
+		if(Thread.interrupted())
+			throw new InterruptedException();
+		Thread.yield();
+	}
+	
+	/**
+	 * checks the control connection when a timer fires, at most every CONTROL_CHECK_INTERVAL. The receiver sends nothing
+	 * while a file is in flight, so the connection only has something to read once the receiver gave up on the transfer
+	 * and closed it. The sending thread is then interrupted, which fails send() instead of resending to a receiver that
+	 * drops every segment
+	 * 
+	 * @return true if the receiver ended the transfer, the timeout is not handled
+	 */
+	private synchronized boolean receiverClosed()
 	{
-		DatagramPacket packet = new DatagramPacket(seg.getBytes(), seg.getBytes().length, _TCPSocket.getInetAddress(), _TCPSocket.getPort());
+		//a session's next file may already be reading its reply from the connection once the timers are cancelled
+		if(_ReceiverClosed || _TimersCancelled || _TCPSocket == null)
+			return _ReceiverClosed;
+		long now = System.nanoTime();
+		if(now - _LastControlCheck < TimeUnit.MILLISECONDS.toNanos(CONTROL_CHECK_INTERVAL))
+			return false;
+		_LastControlCheck = now;
+		
 		try{
-			_UDPSocket.send(packet);
-			_PacketQueue.add(seg);
-			if(_PacketQueue.size() == 1)
+			_TCPSocket.setSoTimeout(1);
+			try{
+				_TCPSocket.getInputStream().read();
+			}finally
 			{
-				startTimer();
+				_TCPSocket.setSoTimeout(0);
 			}
-		}catch(Exception ex)
+		}catch(SocketTimeoutException ex)
+		{
+			//nothing to read, the receiver is still there
+			return false;
+		}catch(IOException ex)
 		{
-			_Logger.log(Level.SEVERE, "failed to send packet", ex);
+			//closed or reset, the same as reading the end of the stream
 		}
+		
+		_Log.error("Receiver closed the control connection");
+		_ReceiverClosed = true;
+		_SendingThread.interrupt();
+		return true;
 	}
 	
 	/**
 	 * handles a timeout. In the case of a timeout, all packets in the current queue are resent
 	 */
-	public synchronized void processTimeout()
+	public void processTimeout()
 	{
-		System.out.println("Timeout");
-		Segment[] segmentsInQueue = _PacketQueue.toArray();
-		Segment seg;
-		DatagramPacket packet;
-		for(int i = 0; i < segmentsInQueue.length; i ++)
+		if(receiverClosed())
+			return;
+		if(_LockFree)
+			processLockFreeTimeout();
+		else
+			processLockedTimeout();
+	}
+	
+	private synchronized void processLockedTimeout()
+	{
+		_Log.info("Timeout");
+		_Metrics.timeout();
+		if(_CongestionControl && !_PacketQueue.isEmpty())
+		{
+			//the window collapses to a single segment, the rest of the queue is resent as acks open it up again
+			_CongestionWindow.onTimeout();
+			_ResendNext = _PacketQueue.element().getSeqNum();
+			_RecoverEnd = _NextSegmentNumber;
+			resendWithinWindow();
+			_RttEstimator.backoff();
+			startTimer();
+			return;
+		}
+		
+		//the queue always holds consecutive sequence numbers, so walk the ring from the head instead of copying the queue
+		Segment head = _PacketQueue.element();
+		int count = _PacketQueue.size();
+		for(int i = 0; i < count; i ++)
 		{
-			seg = segmentsInQueue[i];
-			packet = new DatagramPacket(seg.getBytes(), seg.getBytes().length, _TCPSocket.getInetAddress(), _TCPSocket.getPort());
+			int seqNum = SequenceNumber.add(head.getSeqNum(), i);
 			try{
-				_UDPSocket.send(packet);
+				sendSegment(_SegmentRing.getSegment(seqNum));
+				_Resent[seqNum & _SlotMask] = true;
+				_Metrics.segmentRetransmitted();
 			}catch(Exception ex)
 			{
-				_Logger.log(Level.SEVERE, "failed to resend packets in timeout", ex);
+				_Log.error("failed to resend packets in timeout", ex);
 			}
 		}
 		
+		_RttEstimator.backoff();
 		if(!_PacketQueue.isEmpty())
 			startTimer();
 	}
 	
 	/**
-	 * starts the timer. Occurs at startup and when the timer times out and the queue is not empty
+	 * resends the segments still queued from before the last timeout or fast retransmit, as far as the window allows
 	 */
-	private synchronized void startTimer()
+	private void resendWithinWindow()
 	{
-		if(_TimeoutTimer != null)
+		Segment head = _PacketQueue.element();
+		int count = Math.min(_PacketQueue.size(), windowLimit());
+		for(int i = 0; i < count; i++)
 		{
-			try{
-				_TimeoutTimer.cancel();
-			}catch(Exception ex){} //in case timer has already been cancelled
+			int seqNum = SequenceNumber.add(head.getSeqNum(), i);
+			if(SequenceNumber.isBefore(seqNum, _ResendNext))
+				continue;
+			if(!SequenceNumber.isBefore(seqNum, _RecoverEnd))
+				break;
 			
+			try{
+				sendSegment(_SegmentRing.getSegment(seqNum));
+				_Resent[seqNum & _SlotMask] = true;
+				_Metrics.segmentRetransmitted();
+			}catch(Exception ex)
+			{
+				_Log.error("failed to resend packets in timeout", ex);
+			}
+			_ResendNext = SequenceNumber.add(seqNum, 1);
+		}
+	}
+	
+	/**
+	 * handles the timeout of a single segment in Selective Repeat mode. Only that segment is resent, and only if
+	 * it has not been acknowledged since the timer fired
+	 * 
+	 * @param seg the segment whose timer expired
+	 */
+	public synchronized void processTimeout(Segment seg)
+	{
+		if(receiverClosed())
+			return;
+		Segment head = _PacketQueue.element();
+		int index = seg.getSeqNum() & _SlotMask;
+		
+		//the segment was acked (and possibly its slot reused) between the timer firing and us getting the lock
+		if(head == null || SequenceNumber.isBefore(seg.getSeqNum(), head.getSeqNum()) || _Acked[index])
+			return;
+		
+		_Log.info("Timeout", seg.getSeqNum());
+		_Metrics.timeout();
+		try{
+			sendSegment(seg);
+			_Resent[index] = true;
+			_Metrics.segmentRetransmitted();
+		}catch(Exception ex)
+		{
+			_Log.error("failed to resend packet in timeout", ex);
 		}
 		
-		_TimeoutTimer = new Timer(true);
-		_TimeoutTimer.schedule(new TimeoutHandler(this), _RtoTimeout);
+		//every segment has its own timer, so only back off when the oldest segment expires. That matches the single
+		//timer of Go-Back-N instead of doubling once for each segment lost in a burst
+		if(head == seg)
+		{
+			_RttEstimator.backoff();
+			if(_CongestionControl)
+				_CongestionWindow.onTimeout();
+		}
+		startSegmentTimer(seg);
+	}
+	
+	/**
+	 * starts the timer. Occurs at startup and when the timer times out and the queue is not empty. Re-arming an
+	 * already running timer just moves its deadline
+	 */
+	private synchronized void startTimer()
+	{
+		_TimeoutTimer.arm(getRto());
+	}
+	
+	/**
+	 * starts the timer guarding a single segment in Selective Repeat mode
+	 * 
+	 * @param seg the segment that was just sent
+	 */
+	private synchronized void startSegmentTimer(Segment seg)
+	{
+		_SegmentTimers[seg.getSeqNum() & _SlotMask].arm(seg, getRto());
 	}
 	
 	/**
 	 * processACK removes all packets up to the ack in question from the queue as the server has acknowledged their arrival
 	 * @param ack The Segment that was received from the server
 	 */
-	public synchronized void processACK(Segment ack)
+	public void processACK(Segment ack)
 	{
+		_Metrics.ackReceived();
+		if(_LockFree)
+			processLockFreeACK(ack.getSeqNum());
+		else
+			processLockedACK(ack);
+	}
+	
+	private synchronized void processLockedACK(Segment ack)
+	{
+		if(_Mode == RetransmissionMode.SELECTIVE_REPEAT)
+		{
+			processSelectiveACK(ack);
+			return;
+		}
+		
+		//late duplicates can still arrive once everything has been acknowledged
+		Segment head = _PacketQueue.element();
+		if(head == null)
+		{
+			_Metrics.duplicateAck();
+			return;
+		}
+		
 		//window has to be less than or equal to my index + windowSize, so if ack seq is greater than 
 		//or equal to current front of queue, it's in window
-		if(ack.getSeqNum() >= _PacketQueue.element().getSeqNum() && ack.getSeqNum() <= _NextSegmentNumber)
+		if(!SequenceNumber.isBefore(ack.getSeqNum(), head.getSeqNum()) && !SequenceNumber.isAfter(ack.getSeqNum(), _NextSegmentNumber))
 		{
-			_TimeoutTimer.cancel();
-			System.out.println("Processing ack: " + ack.getSeqNum());
-			while(!_PacketQueue.isEmpty() && _PacketQueue.element().getSeqNum() < ack.getSeqNum())
+			_Log.debug("Processing ack", ack.getSeqNum());
+			boolean advanced = SequenceNumber.isAfter(ack.getSeqNum(), head.getSeqNum());
+			if(advanced)
+			{
+				sampleRtt(SequenceNumber.add(ack.getSeqNum(), -1));
+				_RttEstimator.resetBackoff();
+				if(_CongestionControl)
+					_CongestionWindow.onAck(SequenceNumber.distance(head.getSeqNum(), ack.getSeqNum()));
+				_DuplicateAcks = 0;
+			}else
+			{
+				_Metrics.duplicateAck();
+				countDuplicateAck(head);
+			}
+			while(!_PacketQueue.isEmpty() && SequenceNumber.isBefore(_PacketQueue.element().getSeqNum(), ack.getSeqNum()))
 			{
 				try{
 					_PacketQueue.remove();
 				}catch(Exception ex)
 				{
-					_Logger.log(Level.SEVERE, "failed to acknowledge ack", ex);
+					_Log.error("failed to acknowledge ack", ex);
 				}
 			}
-			startTimer();
+			recordProgress();
+			if(SequenceNumber.isBefore(_ResendNext, _RecoverEnd))
+				resendWithinWindow();
+			signalWindow();
+			
+			//only an ack for new data restarts the timer (RFC 6298 5.3), a stream of duplicates must not keep pushing
+			//the timeout back. A fast retransmit has already restarted it
+			if(_PacketQueue.isEmpty())
+				_TimeoutTimer.cancel();
+			else if(advanced)
+				startTimer();
+		}else if(SequenceNumber.isAfter(ack.getSeqNum(), _NextSegmentNumber))
+		{
+			_Metrics.outOfWindowAck();
+		}else
+		{
+			_Metrics.duplicateAck();
+		}
+	}
+	
+	/**
+	 * marks a single segment as acknowledged and stops its timer, then slides the window past every acknowledged
+	 * segment at the front of the queue
+	 * 
+	 * @param ack The Segment that was received from the server, carrying the sequence number of the segment it acknowledges
+	 */
+	private void processSelectiveACK(Segment ack)
+	{
+		Segment head = _PacketQueue.element();
+		int seqNum = ack.getSeqNum();
+		int index = seqNum & _SlotMask;
+		
+		//duplicate acks and acks for segments outside the window are ignored
+		if(!SequenceNumber.isBefore(seqNum, _NextSegmentNumber))
+		{
+			_Metrics.outOfWindowAck();
+			return;
+		}
+		if(head == null || SequenceNumber.isBefore(seqNum, head.getSeqNum()) || _Acked[index])
+		{
+			_Metrics.duplicateAck();
+			return;
+		}
+		
+		_Log.debug("Processing ack", seqNum);
+		_Acked[index] = true;
+		sampleRtt(seqNum);
+		if(_CongestionControl)
+			_CongestionWindow.onAck(1);
+		_SegmentTimers[index].cancel();
+		
+		//an ack past the head says the head is still missing
+		if(seqNum == head.getSeqNum())
+			_DuplicateAcks = 0;
+		else
+			countDuplicateAck(head);
+		
+		if(_Acked[head.getSeqNum() & _SlotMask])
+			_RttEstimator.resetBackoff();
+		while(!_PacketQueue.isEmpty() && _Acked[_PacketQueue.element().getSeqNum() & _SlotMask])
+		{
+			try{
+				_PacketQueue.remove();
+			}catch(Exception ex)
+			{
+				_Log.error("failed to acknowledge ack", ex);
+			}
+		}
+		recordProgress();
+		signalWindow();
+	}
+	
+	/**
+	 * publishes how far the window has moved, everything below its head has been acknowledged
+	 */
+	private void recordProgress()
+	{
+		Segment head = _PacketQueue.element();
+		setAcked(head == null ? _NextSegmentNumber : head.getSeqNum());
+	}
+	
+	/**
+	 * moves the count of acknowledged segments up to a sequence number. The count is 64 bit, so it keeps counting when
+	 * the sequence numbers wrap around
+	 * 
+	 * @param seqNum the first sequence number not acknowledged yet
+	 */
+	private void setAcked(int seqNum)
+	{
+		_AckedSegments += SequenceNumber.distance(SequenceNumber.add(_InitialSequenceNumber, _AckedSegments), seqNum);
+	}
+	
+	/**
+	 * counts an ack that did not move the window. Reaching the threshold resends right away, once per loss, later
+	 * duplicates are ignored until the window moves. A Go-Back-N receiver drops everything after the missing segment,
+	 * so Go-Back-N goes back to the head and resends the window like on a timeout, Selective Repeat only resends the head
+	 * 
+	 * @param head the oldest unacknowledged segment
+	 */
+	private void countDuplicateAck(Segment head)
+	{
+		if(_DuplicateAckThreshold <= 0 || ++_DuplicateAcks != _DuplicateAckThreshold)
+			return;
+		
+		_Log.info("Fast retransmit", head.getSeqNum());
+		_Metrics.fastRetransmit();
+		if(_CongestionControl)
+			_CongestionWindow.onFastRetransmit();
+		
+		if(_Mode == RetransmissionMode.SELECTIVE_REPEAT)
+		{
+			try{
+				sendSegment(head);
+				_Resent[head.getSeqNum() & _SlotMask] = true;
+				_Metrics.segmentRetransmitted();
+			}catch(Exception ex)
+			{
+				_Log.error("failed to fast retransmit packet", ex);
+			}
+			startSegmentTimer(head);
+			return;
+		}
+		
+		_ResendNext = head.getSeqNum();
+		_RecoverEnd = _NextSegmentNumber;
+		resendWithinWindow();
+		startTimer();
+	}
+	
+	/**
+	 * feeds the round trip time of an acknowledged segment to the estimator. Following Karn's rule, segments that were
+	 * retransmitted are skipped since we cannot tell which transmission the ack belongs to
+	 * 
+	 * @param seqNum the sequence number of the acknowledged segment
+	 */
+	private void sampleRtt(int seqNum)
+	{
+		int index = seqNum & _SlotMask;
+		if(!_Resent[index])
+			_RttEstimator.addSample((System.nanoTime() - _SendTimes[index]) / 1e6);
+	}
+	
+	/**
+	 * sends a segment through the lock free window, only ever called on the sending thread. The slot is written before
+	 * _NextSegmentNumber is published, which is what lets the ack thread read it
+	 * 
+	 * @param seg the segment to send. Segments that do not come from the segment ring are copied into it
+	 */
+	private void sendLockFree(Segment seg)
+	{
+		try{
+			if(_MappedFile == null)
+				seg = _SegmentRing.put(seg);
+			
+			int seqNum = seg.getSeqNum();
+			int index = seqNum & _SlotMask;
+			_SendTimes[index] = System.nanoTime();
+			_Resent[index] = false;
+			sendSegment(seg);
+			if(!SequenceNumber.isBefore(seqNum, _NextSegmentNumber))
+				_NextSegmentNumber = SequenceNumber.add(seqNum, 1);
+			
+			if(!_TimerRunning.get() && _TimerRunning.compareAndSet(false, true))
+			{
+				_LastProgress = System.nanoTime();
+				_TimeoutTimer.arm(getRto());
+			}
+		}catch(Exception ex)
+		{
+			_Log.error("failed to send packet", ex);
+		}
+	}
+	
+	/**
+	 * advances the cumulative ack, the ack thread is the only one writing it. The sending thread reclaims the slots
+	 * 
+	 * @param ackNum the next sequence number the receiver expects
+	 */
+	private void processLockFreeACK(int ackNum)
+	{
+		int acked = _CumulativeAck.get();
+		
+		//the resend itself is left to the sending thread, like every other send
+		if(!SequenceNumber.isAfter(ackNum, acked))
+		{
+			_Metrics.duplicateAck();
+			if(ackNum == acked && SequenceNumber.isBefore(acked, _NextSegmentNumber) && _DuplicateAckThreshold > 0 && ++_DuplicateAcks == _DuplicateAckThreshold)
+			{
+				_FastRetransmitRequested.set(true);
+				if(_SenderParked)
+					LockSupport.unpark(_SendingThread);
+			}
+			return;
 		}
 		
+		//acks for segments not sent yet leave the window where it is
+		if(SequenceNumber.isAfter(ackNum, _NextSegmentNumber))
+		{
+			_Metrics.outOfWindowAck();
+			return;
+		}
+		
+		sampleRtt(SequenceNumber.add(ackNum, -1));
+		_RttEstimator.resetBackoff();
+		if(_CongestionControl)
+			_CongestionWindow.onAck(SequenceNumber.distance(acked, ackNum));
+		
+		_DuplicateAcks = 0;
+		_LastProgress = System.nanoTime();
+		_CumulativeAck.set(ackNum);
+		setAcked(ackNum);
+		if(_SenderParked)
+			LockSupport.unpark(_SendingThread);
+	}
+	
+	/**
+	 * checks the window when the timer fires. Acks do not re-arm the timer, they only record when the window last moved,
+	 * so the timer moves its own deadline when there was progress. On a real timeout the sending thread is asked to go
+	 * back and resend the window
+	 */
+	private void processLockFreeTimeout()
+	{
+		if(!SequenceNumber.isBefore(_CumulativeAck.get(), _NextSegmentNumber))
+		{
+			_TimerRunning.set(false);
+			
+			//the sender may have sent a segment while the timer still looked like it was running
+			if(!SequenceNumber.isBefore(_CumulativeAck.get(), _NextSegmentNumber) || !_TimerRunning.compareAndSet(false, true))
+				return;
+			_LastProgress = System.nanoTime();
+		}
+		
+		long remaining = _LastProgress + TimeUnit.MILLISECONDS.toNanos(getRto()) - System.nanoTime();
+		if(remaining > 0)
+		{
+			_TimeoutTimer.arm(TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+			return;
+		}
+		
+		_Log.info("Timeout");
+		_Metrics.timeout();
+		_RttEstimator.backoff();
+		if(_CongestionControl)
+			_CongestionWindow.onTimeout();
+		_LastProgress = System.nanoTime();
+		_TimeoutRequested.set(true);
+		LockSupport.unpark(_SendingThread);
+		_TimeoutTimer.arm(getRto());
+	}
+	
+	/**
+	 * waits on the sending thread until there is room for another segment, or until everything has been acknowledged.
+	 * Resends requested by the timer are made while waiting
+	 * 
+	 * @param drain true to wait for every segment to be acknowledged
+	 * @throws InterruptedException if the sending thread is interrupted while parked
+	 */
+	private void awaitLockFreeWindow(boolean drain) throws InterruptedException
+	{
+		while(true)
+		{
+			resendLockFree();
+			
+			int acked = _CumulativeAck.get();
+			if(drain ? !SequenceNumber.isBefore(acked, _NextSegmentNumber) : SequenceNumber.distance(acked, _NextSegmentNumber) < windowLimit())
+				return;
+			
+			if(!_BlockingWindow)
+			{
+				spin();
+				continue;
+			}
+			
+			//an ack or timeout arriving after our check still sees the flag and unparks us
+			_SenderParked = true;
+			if(_CumulativeAck.get() == acked && !_TimeoutRequested.get() && !_FastRetransmitRequested.get())
+				LockSupport.park(this);
+			_SenderParked = false;
+			if(Thread.interrupted())
+				throw new InterruptedException();
+		}
+	}
+	
+	/**
+	 * goes back to the oldest unacknowledged segment after a timeout or duplicate acks, and resends as far as the window allows
+	 */
+	private void resendLockFree()
+	{
+		int acked = _CumulativeAck.get();
+		boolean fastRetransmit = _FastRetransmitRequested.getAndSet(false) && SequenceNumber.isBefore(acked, _NextSegmentNumber);
+		if(fastRetransmit)
+		{
+			_Log.info("Fast retransmit", acked);
+			_Metrics.fastRetransmit();
+			if(_CongestionControl)
+				_CongestionWindow.onFastRetransmit();
+			_LastProgress = System.nanoTime();
+		}
+		
+		if(_TimeoutRequested.getAndSet(false) || fastRetransmit)
+		{
+			_ResendNext = acked;
+			_RecoverEnd = _NextSegmentNumber;
+		}
+		
+		_ResendNext = SequenceNumber.max(_ResendNext, acked);
+		int limit = SequenceNumber.add(acked, windowLimit());
+		while(SequenceNumber.isBefore(_ResendNext, _RecoverEnd) && SequenceNumber.isBefore(_ResendNext, limit))
+		{
+			int seqNum = _ResendNext;
+			_ResendNext = SequenceNumber.add(seqNum, 1);
+			try{
+				sendSegment(_SegmentRing.getSegment(seqNum));
+				_Resent[seqNum & _SlotMask] = true;
+				_Metrics.segmentRetransmitted();
+			}catch(Exception ex)
+			{
+				_Log.error("failed to resend packets in timeout", ex);
+			}
+		}
+	}
+	
+	/**
+	 * @return how many segments may be unacknowledged, the congestion window when congestion control is enabled
+	 */
+	private int windowLimit()
+	{
+		return _CongestionControl ? _CongestionWindow.getWindow() : _WindowSize;
 	}
 	
 	/**
-	 * Handles the TCP handshake by opening the connection, sending the filename, and recording the server response
+	 * Handles the TCP handshake by opening the connection, sending the filename, and recording the server response. A file
+	 * of a session is requested over the session's connection instead
 	 * 
-	 * @param serverName serverName to connect to
-	 * @param serverPort port to connect to
+	 * @param serverName serverName to connect to, not used for a file of a session
+	 * @param serverPort port to connect to, not used for a file of a session
 	 * @param fileName name of the file to transmit
 	 * @return true if the handshake was successful, false otherwise
 	 */
@@ -254,20 +1706,73 @@ public class FastFtp {
 		DataOutputStream outputStream;
 		DataInputStream inputStream;
 		try{
-			_TCPSocket = new Socket(serverName, serverPort);
-			outputStream = new DataOutputStream(_TCPSocket.getOutputStream());
-			inputStream = new DataInputStream(_TCPSocket.getInputStream());
+			_TCPSocket = _Session != null ? _Session.getControlSocket() : new Socket(serverName, serverPort);
+			//buffered, so the request goes out in one segment instead of a segment per field
+			outputStream = new DataOutputStream(new BufferedOutputStream(_TCPSocket.getOutputStream()));
+			//buffered for the signatures of a delta transfer, the receiver sends nothing after them until our next request
+			inputStream = new DataInputStream(new BufferedInputStream(_TCPSocket.getInputStream()));
+			
+			//a range is described by options, which only the extended handshake carries
+			Handshake request = new Handshake(fileName);
+			if(_RangeLength >= 0)
+			{
+				request.setOption(Handshake.OFFSET, _RangeOffset);
+				request.setOption(Handshake.LENGTH, _RangeLength);
+				request.setOption(Handshake.FILE_SIZE, new File(fileName).length());
+			}
+			
+			if(_Session != null)
+				request.setOption(Handshake.SESSION, 1);
+			if(_InitialSequenceNumber != 0)
+				request.setOption(Handshake.SEQUENCE_BASE, _InitialSequenceNumber);
 			
-			outputStream.writeUTF(fileName);
-			outputStream.flush();
+			//a transfer starting from the beginning is a plain one, so ffserver can still take it
+			long fileSize = new File(fileName).length();
+			long resumeOffset = _Checkpoint != null ? _Checkpoint.load() : 0;
+			if(resumeOffset > 0)
+			{
+				request.setOption(Handshake.RESUME, resumeOffset);
+				request.setOption(Handshake.FILE_SIZE, fileSize);
+			}
+			
+			int payloadSize = _RequestedPayloadSize == 0 ? PayloadSize.probe(_TCPSocket.getLocalAddress()) : PayloadSize.clamp(_RequestedPayloadSize);
+			if(payloadSize != PayloadSize.DEFAULT)
+				request.setOption(Handshake.PAYLOAD_SIZE, payloadSize);
+			
+			//checkpoints and ranges count bytes of the file, which a compressed stream does not line up with
+			if(_CompressionLevel > 0 && _RangeLength < 0 && _Checkpoint == null)
+				request.setOption(Handshake.COMPRESSION, _CompressionLevel);
+			if(_DeltaSync && _RangeLength < 0 && _Checkpoint == null)
+				request.setOption(Handshake.DELTA, DeltaSignatures.blockSize(fileSize));
+			request.writeRequest(outputStream);
 			
-			retVal = inputStream.readByte();
+			retVal = request.readReply(inputStream);
 			
 			success = retVal == 0;
+			_Compressing = success && request.getOption(Handshake.COMPRESSION, 0) > 0;
+			if(success)
+				_SegmentRing.setPayloadSize((int)request.getOption(Handshake.PAYLOAD_SIZE, PayloadSize.DEFAULT));
+			if(success && request.hasOption(Handshake.COMPRESSION) && !_Compressing)
+				_Log.info("Receiver declined compression, sending the file as it is");
+			
+			_Signatures = null;
+			if(success && request.getOption(Handshake.DELTA, 0) > 0)
+				_Signatures = DeltaSignatures.read(inputStream);
+			else if(success && request.hasOption(Handshake.DELTA))
+				_Log.info("Receiver has no copy to sync against, sending the whole file");
+			
+			//the receiver may only have part of what the checkpoint says, the rest goes out as a range
+			if(success && _Checkpoint != null)
+			{
+				_RangeOffset = request.getOption(Handshake.OFFSET, 0);
+				_RangeLength = fileSize - _RangeOffset;
+				if(_RangeOffset > 0)
+					_Log.info("Resuming from byte " + _RangeOffset + " of " + fileSize);
+			}
 			
 		}catch(IOException ex)
 		{
-			_Logger.log(Level.SEVERE, "Error in TCP handshake.", ex);
+			_Log.error("Error in TCP handshake.", ex);
 		}
 		
 		return success;
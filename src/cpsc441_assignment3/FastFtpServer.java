@@ -0,0 +1,380 @@
+package cpsc441_assignment3;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import cpsc441.a3.Segment;
+
+/**
+ * FastFtpServer Class
+ * 
+ * A local receiver for FastFtp speaking the same protocol as ffserver.jar: the file name arrives over TCP and is confirmed
+ * with a 0 byte, the file arrives over UDP on the same port number, and a 0 byte over TCP ends the transfer.
+ * 
+ * Several transfers can run at once. Each control connection gets a ReceiveSession, and datagrams are handed to the session
+ * of the sender's address, since a sender's UDP port is the same as its TCP port. Senders using the extended handshake
+ * can transfer a range of a file, which lets a file be sent as several parallel stripes, send many files one after
+ * the other over the same connection as a FileSession, or only send what changed against the copy already here.
+ * 
+ * Arriving segments and departing acks can each be passed through a NetworkEmulator to impair the link.
+ * 
+ * @author Tyrone
+ */
+public class FastFtpServer implements Runnable {
+	private static final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024; //bytes
+	
+	private ServerSocket _ServerSocket;
+	private DatagramSocket _UDPSocket;
+	private RetransmissionMode _Mode;
+	private int _WindowSize;
+	private File _OutputDirectory;
+	private NetworkEmulator _DataLink;
+	private NetworkEmulator _AckLink;
+	private EventLog _Log;
+	private volatile boolean _Shutdown;
+	private ExecutorService _ExecutorService;
+	private Map<SocketAddress, ReceiveSession> _Sessions;
+	private Map<SocketAddress, Socket> _ControlSockets;
+	
+	/**
+	 * Constructor, binds the TCP and UDP sockets
+	 * 
+	 * @param port				port to listen on, for both TCP and UDP, or 0 for any free port
+	 * @param mode				which style of acks to send back
+	 * @param windowSize		receive window (in segments), only used for Selective Repeat
+	 * @param outputDirectory	directory received files are written to
+	 * @throws IOException if either socket cannot be bound
+	 */
+	public FastFtpServer(int port, RetransmissionMode mode, int windowSize, File outputDirectory) throws IOException
+	{
+		_ServerSocket = new ServerSocket(port);
+		_UDPSocket = new DatagramSocket(_ServerSocket.getLocalPort());
+		//every session shares this socket, give bursts from parallel senders room to queue
+		_UDPSocket.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+		_Mode = mode;
+		_WindowSize = windowSize;
+		_OutputDirectory = outputDirectory;
+		_Log = EventLog.getLog();
+		_Shutdown = false;
+		_Sessions = new ConcurrentHashMap<SocketAddress, ReceiveSession>();
+		_ControlSockets = new ConcurrentHashMap<SocketAddress, Socket>();
+		_ExecutorService = Executors.newCachedThreadPool(new ThreadFactory(){
+			public Thread newThread(Runnable task)
+			{
+				Thread thread = new Thread(task, "FastFtpServer session");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * @param link emulator every arriving segment passes through before it is processed, or null for none
+	 */
+	public void setDataLink(NetworkEmulator link)
+	{
+		_DataLink = link;
+	}
+	
+	/**
+	 * @param link emulator every ack passes through before it is sent, or null for none
+	 */
+	public void setAckLink(NetworkEmulator link)
+	{
+		_AckLink = link;
+	}
+	
+	/**
+	 * @return the port the server is listening on
+	 */
+	public int getPort()
+	{
+		return _ServerSocket.getLocalPort();
+	}
+	
+	/**
+	 * accepts and receives files until shutdown is called
+	 */
+	public void run()
+	{
+		_ExecutorService.execute(new Runnable(){
+			public void run()
+			{
+				receiveSegments();
+			}
+		});
+		
+		while(!_Shutdown)
+		{
+			try{
+				final Socket socket = _ServerSocket.accept();
+				_ExecutorService.execute(new Runnable(){
+					public void run()
+					{
+						try{
+							receiveFiles(socket);
+						}catch(IOException ex)
+						{
+							if(!_Shutdown)
+								_Log.error("Failed to receive file", ex);
+						}
+					}
+				});
+			}catch(IOException ex)
+			{
+				if(!_Shutdown)
+					_Log.error("Failed to accept connection", ex);
+			}
+		}
+	}
+	
+	/**
+	 * stops the server and closes its sockets
+	 */
+	public void shutdown()
+	{
+		_Shutdown = true;
+		try{
+			_ServerSocket.close();
+		}catch(IOException ex){} //closing anyway
+		_UDPSocket.close();
+		_ExecutorService.shutdownNow();
+	}
+	
+	/**
+	 * receives the files of a control connection: a single file, or one after the other until the sender closes the
+	 * connection if the requests are part of a session
+	 * 
+	 * @param tcpSocket the accepted control connection
+	 * @throws IOException if either connection fails
+	 */
+	private void receiveFiles(Socket tcpSocket) throws IOException
+	{
+		try(Socket socket = tcpSocket)
+		{
+			//the signatures of a delta transfer follow the reply, they may not wait for the ack of it
+			socket.setTcpNoDelay(true);
+			DataInputStream tcpInput = new DataInputStream(socket.getInputStream());
+			DataOutputStream tcpOutput = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			SocketAddress sender = socket.getRemoteSocketAddress();
+			_ControlSockets.put(sender, socket);
+			try{
+				Handshake request = Handshake.readRequest(tcpInput);
+				receiveFile(request, sender, tcpInput, tcpOutput);
+				
+				while(request.hasOption(Handshake.SESSION))
+				{
+					try{
+						request = Handshake.readRequest(tcpInput);
+					}catch(EOFException ex)
+					{
+						//the sender closed the session
+						return;
+					}
+					receiveFile(request, sender, tcpInput, tcpOutput);
+				}
+			}finally
+			{
+				_ControlSockets.remove(sender);
+			}
+		}
+	}
+	
+	/**
+	 * receives a single file: replies to the handshake, then waits for the end of transmission byte while the segments
+	 * are handed to the session by receiveSegments
+	 * 
+	 * @param request the handshake the file was requested with
+	 * @param sender address of the sender, for both TCP and UDP
+	 * @param tcpInput the control connection
+	 * @param tcpOutput the control connection
+	 * @throws IOException if either connection fails
+	 */
+	private void receiveFile(Handshake request, SocketAddress sender, DataInputStream tcpInput, DataOutputStream tcpOutput) throws IOException
+	{
+		File file = new File(_OutputDirectory, new File(request.getFileName()).getName());
+		ReceiveSession session = new ReceiveSession(file, request, _Mode, _WindowSize, FastFtp.getWorkerService());
+		_Sessions.put(sender, session);
+		try{
+			request.writeReply(tcpOutput, (byte)0);
+			if(session.getSignatures() != null)
+			{
+				session.getSignatures().write(tcpOutput);
+				tcpOutput.flush();
+			}
+			
+			//the end of transmission byte is only sent once every segment has been acked
+			tcpInput.readByte();
+		}finally
+		{
+			_Sessions.remove(sender);
+			session.close();
+		}
+	}
+	
+	/**
+	 * receives datagrams for every session until the server shuts down
+	 */
+	private void receiveSegments()
+	{
+		byte[] buffer = new byte[PayloadSize.HEADER_SIZE + PayloadSize.MAX];
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		while(!_Shutdown)
+		{
+			try{
+				packet.setLength(buffer.length);
+				_UDPSocket.receive(packet);
+			}catch(IOException ex)
+			{
+				if(!_Shutdown)
+					_Log.error("Failed to receive segment", ex);
+				continue;
+			}
+			
+			final byte[] data = Arrays.copyOf(packet.getData(), packet.getLength());
+			final SocketAddress sender = packet.getSocketAddress();
+			try{
+				if(_DataLink == null)
+				{
+					processSegment(data, sender);
+				}else
+				{
+					_DataLink.transmit(data.length, new Runnable(){
+						public void run()
+						{
+							processSegment(data, sender);
+						}
+					});
+				}
+			}catch(RuntimeException ex)
+			{
+				//this is the only thread receiving for every session, one bad datagram must not stop it
+				_Log.error("Failed to handle segment", ex);
+			}
+		}
+	}
+	
+	/**
+	 * handles a segment once it has made it across the data link, and sends the ack for it
+	 * 
+	 * @param data the encoded segment
+	 * @param sender where the segment came from, and where the ack goes
+	 */
+	private void processSegment(byte[] data, SocketAddress sender)
+	{
+		//segments of a sender without a session, or arriving after its session ended, are dropped
+		ReceiveSession session = _Sessions.get(sender);
+		if(session == null)
+			return;
+		
+		Segment ack;
+		try{
+			ack = session.processSegment(data);
+		}catch(IOException ex)
+		{
+			_Log.error("Failed to write segment, ending the transfer", ex);
+			failSession(sender, session);
+			return;
+		}catch(RuntimeException ex)
+		{
+			//the session may be part way through the segment, so it cannot go on either
+			_Log.error("Failed to handle segment, ending the transfer", ex);
+			failSession(sender, session);
+			return;
+		}
+		if(ack == null)
+			return;
+		
+		final byte[] ackBytes = ack.getBytes();
+		final DatagramPacket ackPacket = new DatagramPacket(ackBytes, ackBytes.length, sender);
+		if(_AckLink == null)
+		{
+			sendAck(ackPacket);
+		}else
+		{
+			_AckLink.transmit(ackBytes.length, new Runnable(){
+				public void run()
+				{
+					sendAck(ackPacket);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * ends a transfer whose segments can no longer be written. The session drops every later segment without an ack,
+	 * and closing the control connection tells the sender, which would otherwise resend the same segment forever
+	 * 
+	 * @param sender address of the sender, for both TCP and UDP
+	 * @param session the failed session
+	 */
+	private void failSession(SocketAddress sender, ReceiveSession session)
+	{
+		_Sessions.remove(sender, session);
+		Socket socket = _ControlSockets.get(sender);
+		try{
+			if(socket != null)
+				socket.close();
+		}catch(IOException ex)
+		{
+			_Log.warn("Failed to close control connection", ex);
+		}
+	}
+	
+	private void sendAck(DatagramPacket ackPacket)
+	{
+		try{
+			_UDPSocket.send(ackPacket);
+		}catch(IOException ex)
+		{
+			if(!_Shutdown)
+				_Log.warn("Failed to send ack", ex);
+		}
+	}
+	
+	/**
+	 * Runs a server in the current directory
+	 */
+	public static void main(String[] args) {
+		if (args.length != 3 && args.length != 4) {
+			System.out.println("wrong number of arguments, try again.");
+			System.out.println("usage: java FastFtpServer port loss window [sr]");
+			System.exit(0);
+		}
+		
+		int port = Integer.parseInt(args[0]);
+		double loss = Double.parseDouble(args[1]);
+		int windowSize = Integer.parseInt(args[2]);
+		RetransmissionMode mode = args.length == 4 && args[3].equals("sr") ? RetransmissionMode.SELECTIVE_REPEAT : RetransmissionMode.GO_BACK_N;
+		
+		try{
+			FastFtpServer server = new FastFtpServer(port, mode, windowSize, new File("."));
+			if(loss > 0)
+			{
+				NetworkEmulator link = new NetworkEmulator();
+				link.setLossProbability(loss);
+				server.setDataLink(link);
+			}
+			System.out.printf("server listening on port %d (%s)\n", server.getPort(), mode);
+			server.run();
+		}catch(IOException ex)
+		{
+			System.out.println(ex.getMessage());
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package cpsc441_assignment3;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * FileSession Class
+ *
+ * Sends many files to FastFtpServer over one control connection and one UDP socket. The TCP connection, the UDP channel,
+ * the ack receiver and the thread pools are set up once by open(), after which a file only costs a handshake on the open
+ * connection, its segments and the end of transmission byte. Every file is sent by a FastFtp of its own, so no window
+ * state carries over from one file to the next.
+ *
+ * Each file gets its own range of sequence numbers, starting where the previous file's ended, so a late segment or ack
+ * of an earlier file is never taken for one of the current file. The numbers wrap around in a long session, see
+ * SequenceNumber.
+ *
+ * Files are sent one at a time, send() is not thread safe.
+ *
+ * @author Tyrone
+ */
+public class FileSession implements Closeable {
+	private int _WindowSize;
+	private int _RtoTimer;
+	private RetransmissionMode _Mode;
+	private Socket _TCPSocket;
+	private DatagramChannel _UDPChannel;
+	private ReceiverThread _Receiver;
+	private ExecutorService _ExecutorService;
+	private ScheduledExecutorService _TimerService;
+	private int _SequenceBase;
+	private int _FileCount;
+	private EventLog _Log;
+
+	/**
+	 * @param windowSize	window of every file (in segments)
+	 * @param rtoTimer		initial time-out interval of every file (in milli-seconds)
+	 * @param mode			The retransmission strategy to use, the server has to ack in the matching style
+	 */
+	public FileSession(int windowSize, int rtoTimer, RetransmissionMode mode)
+	{
+		_WindowSize = windowSize;
+		_RtoTimer = rtoTimer;
+		_Mode = mode;
+		_SequenceBase = 0;
+		_FileCount = 0;
+		_Log = EventLog.getLog();
+	}
+
+	/**
+	 * connects to the server and starts receiving acks
+	 *
+	 * @param serverName	Name of the remote server, has to be a FastFtpServer
+	 * @param serverPort	Port number of the remote server
+	 * @throws IOException if either connection cannot be opened
+	 */
+	public void open(String serverName, int serverPort) throws IOException
+	{
+		_TCPSocket = new Socket(serverName, serverPort);
+		try{
+			//the end of transmission byte and the next request follow each other, neither may wait for the other's ack
+			_TCPSocket.setTcpNoDelay(true);
+			//the server tells senders apart by address, so the UDP port has to be the same as the TCP one
+			_UDPChannel = DatagramChannel.open();
+			_UDPChannel.bind(new InetSocketAddress(_TCPSocket.getLocalPort()));
+			_UDPChannel.connect(new InetSocketAddress(_TCPSocket.getInetAddress(), _TCPSocket.getPort()));
+		}catch(IOException ex)
+		{
+			close();
+			throw ex;
+		}
+
+		_ExecutorService = Executors.newCachedThreadPool();
+		_TimerService = FastFtp.createTimerService();
+		_Receiver = new ReceiverThread(_UDPChannel.socket(), null);
+		_ExecutorService.execute(_Receiver);
+	}
+
+	/**
+	 * @return a sender for the next file, running on the session's thread pools, to configure before passing it to send
+	 */
+	public FastFtp createTransfer()
+	{
+		return new FastFtp(_WindowSize, _RtoTimer, _Mode, _ExecutorService, _TimerService);
+	}
+
+	/**
+	 * sends a file with the session's default settings
+	 *
+	 * @param fileName		Name of the file to be trasferred to the remote server
+	 * @return true if the file was sent, false if it failed, which closes the session
+	 */
+	public boolean send(String fileName)
+	{
+		return send(createTransfer(), fileName);
+	}
+
+	/**
+	 * sends a file over the open connection, returning once it is complete. Ranges and resumable transfers are rejected
+	 *
+	 * @param transfer		sender for the file, from createTransfer
+	 * @param fileName		Name of the file to be trasferred to the remote server
+	 * @return true if the file was sent, false if it failed, which closes the session
+	 * @throws IllegalArgumentException if the transfer is set to send a range or to resume
+	 */
+	public boolean send(FastFtp transfer, String fileName)
+	{
+		if(transfer.isRange() || transfer.isResumable())
+			throw new IllegalArgumentException("Ranges and resumable transfers cannot be sent in a session");
+		if(_TCPSocket == null || _TCPSocket.isClosed())
+		{
+			_Log.error("Session is not open, cannot send " + fileName);
+			return false;
+		}
+
+		transfer.send(this, fileName);
+		if(!transfer.isCompleted())
+		{
+			//the server is still waiting for the end of this file, the connection cannot be used for another one
+			_Log.error("Failed to send " + fileName + ", closing the session");
+			close();
+			return false;
+		}
+
+		_SequenceBase = transfer.getNextSequenceNumber();
+		_FileCount++;
+		return true;
+	}
+
+	/**
+	 * numbers the first segment of the next file from seqNum, instead of continuing from the file before
+	 *
+	 * @param seqNum sequence number of the next file's first segment
+	 */
+	public void setInitialSequenceNumber(int seqNum)
+	{
+		_SequenceBase = seqNum;
+	}
+
+	/**
+	 * @return the number of files sent so far
+	 */
+	public int getFileCount()
+	{
+		return _FileCount;
+	}
+
+	/**
+	 * @return sequence number the next file's first segment is sent as
+	 */
+	int getSequenceBase()
+	{
+		return _SequenceBase;
+	}
+
+	Socket getControlSocket()
+	{
+		return _TCPSocket;
+	}
+
+	DatagramChannel getChannel()
+	{
+		return _UDPChannel;
+	}
+
+	ReceiverThread getReceiver()
+	{
+		return _Receiver;
+	}
+
+	/**
+	 * ends the session, the server stops waiting for files once the control connection is closed
+	 */
+	public void close()
+	{
+		if(_Receiver != null)
+			_Receiver.shutdown();
+		try{
+			if(_TCPSocket != null)
+				_TCPSocket.close();
+			//closing the channel lets the receiver thread exit
+			if(_UDPChannel != null)
+				_UDPChannel.close();
+		}catch(IOException ex)
+		{
+			_Log.warn("Failed to close session", ex);
+		}
+		if(_ExecutorService != null)
+			_ExecutorService.shutdown();
+		if(_TimerService != null)
+			_TimerService.shutdownNow();
+	}
+}
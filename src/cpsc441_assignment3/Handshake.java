@@ -0,0 +1,179 @@
+package cpsc441_assignment3;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Handshake Class
+ *
+ * The request a transfer is opened with over TCP, and the receiver's reply to it. A plain request is only the file name
+ * and is answered with a single 0 byte, exactly what ffserver.jar expects. An extended request, only understood by
+ * FastFtpServer, starts with a marker that cannot be a file name and adds a list of named options after the file name.
+ * Its reply carries the options the receiver accepted after the 0 byte.
+ *
+ * @author Tyrone
+ */
+public class Handshake {
+	private static final String EXTENDED_MARKER = "\u0000fastftp";
+
+	/** where in the file the transferred bytes start (in bytes) */
+	public static final String OFFSET = "offset";
+	/** how many bytes of the file are transferred, starting at OFFSET */
+	public static final String LENGTH = "length";
+	/** size of the whole file (in bytes), so the receiver can size it before every range has arrived */
+	public static final String FILE_SIZE = "size";
+	/** offset the sender would like to resume an interrupted transfer from, answered with the OFFSET the receiver has */
+	public static final String RESUME = "resume";
+	/** deflate level the sender would like to compress the file with, answered with 0 if the receiver declines */
+	public static final String COMPRESSION = "compression";
+	/** payload of a datagram the sender would like to use (in bytes), answered with the size the receiver accepts */
+	public static final String PAYLOAD_SIZE = "payload";
+	/** set on every request of a FileSession, the control connection stays open for the next request after the transfer */
+	public static final String SESSION = "session";
+	/** sequence number of the first segment, 0 if not sent. Files of a session continue from where the one before ended */
+	public static final String SEQUENCE_BASE = "base";
+	/** block size the sender would like to sync the file in (in bytes), answered with the size the receiver accepts, or 0
+	 * if it has no copy to sync against. The signatures of the receiver's copy follow the reply, see DeltaSignatures */
+	public static final String DELTA = "delta";
+
+	private String _FileName;
+	private Map<String, Long> _Options;
+
+	/**
+	 * @param fileName name of the file to transfer
+	 */
+	public Handshake(String fileName)
+	{
+		_FileName = fileName;
+		_Options = new LinkedHashMap<String, Long>();
+	}
+
+	/**
+	 * @return name of the file to transfer
+	 */
+	public String getFileName()
+	{
+		return _FileName;
+	}
+
+	/**
+	 * @return true if the request carries options, which only FastFtpServer understands
+	 */
+	public boolean isExtended()
+	{
+		return !_Options.isEmpty();
+	}
+
+	public void setOption(String name, long value)
+	{
+		_Options.put(name, value);
+	}
+
+	public boolean hasOption(String name)
+	{
+		return _Options.containsKey(name);
+	}
+
+	/**
+	 * @param name the option to look up
+	 * @param defaultValue returned if the option was not sent
+	 * @return the value of the option
+	 */
+	public long getOption(String name, long defaultValue)
+	{
+		Long value = _Options.get(name);
+		return value == null ? defaultValue : value;
+	}
+
+	/**
+	 * writes the request, in the plain format if there are no options
+	 *
+	 * @param out the control connection
+	 * @throws IOException if the connection fails
+	 */
+	public void writeRequest(DataOutputStream out) throws IOException
+	{
+		if(isExtended())
+		{
+			out.writeUTF(EXTENDED_MARKER);
+			out.writeUTF(_FileName);
+			writeOptions(out);
+		}else
+		{
+			out.writeUTF(_FileName);
+		}
+		out.flush();
+	}
+
+	/**
+	 * reads a request in either format
+	 *
+	 * @param in the control connection
+	 * @return the request
+	 * @throws IOException if the connection fails
+	 */
+	public static Handshake readRequest(DataInputStream in) throws IOException
+	{
+		String name = in.readUTF();
+		if(!name.equals(EXTENDED_MARKER))
+			return new Handshake(name);
+
+		Handshake request = new Handshake(in.readUTF());
+		request.readOptions(in);
+		return request;
+	}
+
+	/**
+	 * answers the request. An extended request also gets back its options, which the receiver may have changed to
+	 * what it accepted
+	 *
+	 * @param out the control connection
+	 * @param status 0 to accept the transfer
+	 * @throws IOException if the connection fails
+	 */
+	public void writeReply(DataOutputStream out, byte status) throws IOException
+	{
+		out.writeByte(status);
+		if(status == 0 && isExtended())
+			writeOptions(out);
+		out.flush();
+	}
+
+	/**
+	 * reads the answer to this request, replacing the options with the ones the receiver accepted
+	 *
+	 * @param in the control connection
+	 * @return the status, 0 if the transfer was accepted
+	 * @throws IOException if the connection fails
+	 */
+	public byte readReply(DataInputStream in) throws IOException
+	{
+		byte status = in.readByte();
+		if(status == 0 && isExtended())
+		{
+			_Options.clear();
+			readOptions(in);
+		}
+		return status;
+	}
+
+	private void writeOptions(DataOutputStream out) throws IOException
+	{
+		out.writeShort(_Options.size());
+		for(Map.Entry<String, Long> option : _Options.entrySet())
+		{
+			out.writeUTF(option.getKey());
+			out.writeLong(option.getValue());
+		}
+	}
+
+	private void readOptions(DataInputStream in) throws IOException
+	{
+		int count = in.readUnsignedShort();
+		for(int i = 0; i < count; i++)
+			_Options.put(in.readUTF(), in.readLong());
+	}
+}
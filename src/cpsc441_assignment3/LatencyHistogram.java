@@ -0,0 +1,77 @@
+package cpsc441_assignment3;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram Class
+ *
+ * Counts durations in power of two buckets of nano-seconds: bucket i holds durations below 2^i ns, and at least 2^(i-1) ns
+ * for i above 0. Recording is a single atomic increment, so any number of threads can record without a lock. Percentiles
+ * are only as precise as the bucket, they report its upper bound.
+ *
+ * @author Tyrone
+ */
+public class LatencyHistogram {
+	private static final int BUCKETS = 64;
+
+	private AtomicLongArray _Counts;
+
+	public LatencyHistogram()
+	{
+		_Counts = new AtomicLongArray(BUCKETS);
+	}
+
+	/**
+	 * @param nanos duration to count (in nano-seconds)
+	 */
+	public void record(long nanos)
+	{
+		_Counts.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(Math.max(0, nanos))));
+	}
+
+	/**
+	 * @return a copy of the count of every bucket
+	 */
+	public long[] getCounts()
+	{
+		long[] counts = new long[BUCKETS];
+		for(int i = 0; i < BUCKETS; i++)
+			counts[i] = _Counts.get(i);
+		return counts;
+	}
+
+	/**
+	 * @return the number of durations recorded
+	 */
+	public long getCount()
+	{
+		long count = 0;
+		for(int i = 0; i < BUCKETS; i++)
+			count += _Counts.get(i);
+		return count;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return upper bound of the bucket holding the percentile (in nano-seconds), or 0 if nothing was recorded
+	 */
+	public long getPercentile(double percentile)
+	{
+		long[] counts = getCounts();
+		long total = 0;
+		for(long count : counts)
+			total += count;
+		if(total == 0)
+			return 0;
+
+		long rank = (long)Math.ceil(total * percentile / 100);
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++)
+		{
+			seen += counts[i];
+			if(seen >= Math.max(1, rank))
+				return i == BUCKETS - 1 ? Long.MAX_VALUE : 1L << i;
+		}
+		return Long.MAX_VALUE;
+	}
+}
@@ -0,0 +1,146 @@
+package cpsc441_assignment3;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+
+import cpsc441.a3.Segment;
+
+/**
+ * MappedFile Class
+ * 
+ * Memory maps a file so segments can be written to a DatagramChannel straight from the mapping. Each datagram is a gathering
+ * write of a reused 4 byte header buffer and a reused view of the mapping, so no payload is copied onto the heap.
+ * A single mapping is limited to 2 GB, so larger files are mapped as several regions, each a whole number of payloads long.
+ * Payloads are Segment.MAX_PAYLOAD_SIZE unless a payload size was negotiated, see PayloadSize.
+ * 
+ * Offsets are 64 bit. A sequence number is turned into the index of its segment in the file by its distance from the
+ * segment sent before it, so files of more segments than sequence numbers map correctly after the numbers wrap around.
+ * 
+ * Not thread safe, FastFtp only sends while holding its own lock.
+ * 
+ * @author Tyrone
+ */
+public class MappedFile implements Closeable {
+	private RandomAccessFile _File;
+	private int _PayloadSize;
+	private int _LastSeqNum;
+	private long _LastIndex;
+	private long _RegionSize;
+	private long _Size;
+	private MappedByteBuffer[] _Regions;
+	private ByteBuffer[] _Views;
+	private ByteBuffer _Header;
+	private ByteBuffer[] _Datagram;
+	
+	/**
+	 * maps the whole file read only
+	 * 
+	 * @param file the file to map
+	 * @throws IOException if the file cannot be opened or mapped
+	 */
+	public MappedFile(File file) throws IOException
+	{
+		this(file, 0, -1);
+	}
+	
+	/**
+	 * maps a range of the file read only. Sequence number 0 starts at the beginning of the range
+	 * 
+	 * @param file the file to map
+	 * @param offset where the range starts (in bytes)
+	 * @param length length of the range (in bytes), or -1 for the rest of the file
+	 * @throws IOException if the file cannot be opened or mapped
+	 */
+	public MappedFile(File file, long offset, long length) throws IOException
+	{
+		this(file, offset, length, Segment.MAX_PAYLOAD_SIZE);
+	}
+	
+	/**
+	 * maps a range of the file read only, to be sent in payloads of the given size
+	 * 
+	 * @param file the file to map
+	 * @param offset where the range starts (in bytes)
+	 * @param length length of the range (in bytes), or -1 for the rest of the file
+	 * @param payloadSize payload of every segment but the last (in bytes)
+	 * @throws IOException if the file cannot be opened or mapped
+	 */
+	public MappedFile(File file, long offset, long length, int payloadSize) throws IOException
+	{
+		_PayloadSize = payloadSize;
+		_LastSeqNum = 0;
+		_LastIndex = 0;
+		_RegionSize = (Integer.MAX_VALUE / payloadSize) * (long)payloadSize;
+		_File = new RandomAccessFile(file, "r");
+		FileChannel channel = _File.getChannel();
+		_Size = length < 0 ? channel.size() - offset : Math.min(length, channel.size() - offset);
+		
+		int regionCount = (int)((_Size + _RegionSize - 1) / _RegionSize);
+		_Regions = new MappedByteBuffer[regionCount];
+		_Views = new ByteBuffer[regionCount];
+		for(int i = 0; i < regionCount; i++)
+		{
+			long start = i * _RegionSize;
+			_Regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + start, Math.min(_RegionSize, _Size - start));
+			_Views[i] = _Regions[i].duplicate();
+		}
+		
+		//segments carry their sequence number little endian, the same as Segment.getBytes()
+		_Header = ByteBuffer.allocateDirect(PayloadSize.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		_Datagram = new ByteBuffer[2];
+		_Datagram[0] = _Header;
+	}
+	
+	/**
+	 * @param seqNum sequence number of the first segment of the file (or range), 0 unless set
+	 */
+	public void setInitialSequenceNumber(int seqNum)
+	{
+		_LastSeqNum = seqNum;
+		_LastIndex = 0;
+	}
+	
+	/**
+	 * @return the number of segments needed to send the file
+	 */
+	public long getSegmentCount()
+	{
+		return PayloadSize.segmentCount(_Size, _PayloadSize);
+	}
+	
+	/**
+	 * writes a segment to a connected channel, with its payload taken from the mapping
+	 * 
+	 * @param seqNum sequence number of the segment, which also gives its offset in the file. Has to be within 2^30 of
+	 * the segment sent before it
+	 * @param channel connected channel to write the datagram to
+	 * @throws IOException if the datagram could not be sent
+	 */
+	public void send(int seqNum, DatagramChannel channel) throws IOException
+	{
+		_LastIndex += SequenceNumber.distance(_LastSeqNum, seqNum);
+		_LastSeqNum = seqNum;
+		long offset = _LastIndex * _PayloadSize;
+		int position = (int)(offset % _RegionSize);
+		int length = (int)Math.min(_PayloadSize, _Size - offset);
+		ByteBuffer view = _Views[(int)(offset / _RegionSize)];
+		
+		_Header.clear();
+		_Header.putInt(0, seqNum);
+		view.limit(position + length).position(position);
+		_Datagram[1] = view;
+		channel.write(_Datagram);
+	}
+	
+	public void close() throws IOException
+	{
+		_File.close();
+	}
+}
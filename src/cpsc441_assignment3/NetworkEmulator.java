@@ -0,0 +1,219 @@
+package cpsc441_assignment3;
+
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * NetworkEmulator Class
+ * 
+ * Impairs one direction of a link before packets are handed on: random loss, duplication, a fixed delay plus random
+ * jitter, reordering by holding some packets back, and a bandwidth cap that serializes packets onto a virtual link.
+ * The queue in front of a capped link can be limited, packets that arrive to a full queue are dropped like at a router.
+ * Jitter alone never reorders packets, a packet is never delivered before the one sent ahead of it unless it was picked
+ * for reordering.
+ * Packets that are neither delayed nor rate limited are delivered on the calling thread, everything else is delivered
+ * in order of its delivery time on the emulator's own thread. Packets due at the same time keep the order they were sent in.
+ * 
+ * All settings default to an unimpaired link.
+ * 
+ * @author Tyrone
+ */
+public class NetworkEmulator {
+	private double _LossProbability;
+	private double _DuplicateProbability;
+	private double _ReorderProbability;
+	private long _ReorderDelay;
+	private long _Delay;
+	private long _Jitter;
+	private long _Bandwidth;
+	private long _LinkFreeAt;
+	private long _QueueLimit;
+	private long _QueueDrops;
+	private long _LastDelivery;
+	private long _Sequence;
+	private Random _Random;
+	private DelayQueue<Delivery> _InFlight;
+	private Thread _DeliveryThread;
+	
+	/**
+	 * a packet on the emulated link, ordered by delivery time and then by the order it was sent in
+	 */
+	private static class Delivery implements Delayed {
+		private long _DeliveryAt;
+		private long _Sequence;
+		private Runnable _Task;
+		
+		public Delivery(long deliveryAt, long sequence, Runnable task)
+		{
+			_DeliveryAt = deliveryAt;
+			_Sequence = sequence;
+			_Task = task;
+		}
+		
+		public long getDelay(TimeUnit unit)
+		{
+			return unit.convert(_DeliveryAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+		
+		public int compareTo(Delayed other)
+		{
+			Delivery delivery = (Delivery)other;
+			if(_DeliveryAt != delivery._DeliveryAt)
+				return _DeliveryAt - delivery._DeliveryAt < 0 ? -1 : 1;
+			return Long.compare(_Sequence, delivery._Sequence);
+		}
+	}
+	
+	public NetworkEmulator()
+	{
+		_ReorderDelay = 5;
+		_Random = new Random();
+		_InFlight = new DelayQueue<Delivery>();
+		_DeliveryThread = new Thread(new Runnable(){
+			public void run()
+			{
+				try{
+					while(true)
+					{
+						Runnable task = _InFlight.take()._Task;
+						try{
+							task.run();
+						}catch(RuntimeException ex)
+						{
+							//the thread delivers every packet of the link, a failing one must not stop the rest
+							EventLog.getLog().error("Failed to deliver packet", ex);
+						}
+					}
+				}catch(InterruptedException ex)
+				{
+					//shut down
+				}
+			}
+		}, "NetworkEmulator");
+		_DeliveryThread.setDaemon(true);
+		_DeliveryThread.start();
+	}
+	
+	/**
+	 * @param probability probability that a packet is dropped, between 0 and 1
+	 */
+	public void setLossProbability(double probability)
+	{
+		_LossProbability = probability;
+	}
+	
+	/**
+	 * @param probability probability that a packet is delivered twice, between 0 and 1
+	 */
+	public void setDuplicateProbability(double probability)
+	{
+		_DuplicateProbability = probability;
+	}
+	
+	/**
+	 * @param probability probability that a packet is held back so later packets overtake it, between 0 and 1
+	 * @param delay how long a reordered packet is held back (in milli-seconds)
+	 */
+	public void setReordering(double probability, long delay)
+	{
+		_ReorderProbability = probability;
+		_ReorderDelay = delay;
+	}
+	
+	/**
+	 * @param delay fixed one way delay added to every packet (in milli-seconds)
+	 * @param jitter upper bound of a uniformly distributed random delay added on top (in milli-seconds)
+	 */
+	public void setDelay(long delay, long jitter)
+	{
+		_Delay = delay;
+		_Jitter = jitter;
+	}
+	
+	/**
+	 * @param bitsPerSecond rate of the emulated link, or 0 for no limit
+	 */
+	public void setBandwidth(long bitsPerSecond)
+	{
+		_Bandwidth = bitsPerSecond;
+	}
+	
+	/**
+	 * limits how much may wait for the capped link, only used together with setBandwidth
+	 * 
+	 * @param bytes size of the queue in front of the link (in bytes), or 0 for no limit
+	 */
+	public void setQueueLimit(long bytes)
+	{
+		_QueueLimit = bytes;
+	}
+	
+	/**
+	 * @return the number of packets dropped because the queue in front of the link was full
+	 */
+	public synchronized long getQueueDrops()
+	{
+		return _QueueDrops;
+	}
+	
+	/**
+	 * passes a packet through the emulated link
+	 * 
+	 * @param length size of the packet (in bytes), used for the bandwidth cap
+	 * @param delivery delivers the packet to its destination, run zero, one or two times
+	 */
+	public synchronized void transmit(int length, Runnable delivery)
+	{
+		if(_Random.nextDouble() < _LossProbability)
+			return;
+		
+		long now = System.nanoTime();
+		long departure = now;
+		if(_Bandwidth > 0)
+		{
+			//drop tail, the backlog is whatever has not been serialized onto the link yet
+			long backlog = Math.max(0, _LinkFreeAt - now) * _Bandwidth / 8 / 1000000000L;
+			if(_QueueLimit > 0 && backlog + length > _QueueLimit)
+			{
+				_QueueDrops++;
+				return;
+			}
+			//the packet waits for every packet ahead of it to be serialized onto the link
+			departure = Math.max(now, _LinkFreeAt) + length * 8L * 1000000000L / _Bandwidth;
+			_LinkFreeAt = departure;
+		}
+		
+		long deliveryAt = departure + TimeUnit.MILLISECONDS.toNanos(_Delay);
+		if(_Jitter > 0)
+			deliveryAt += (long)(_Random.nextDouble() * TimeUnit.MILLISECONDS.toNanos(_Jitter));
+		
+		if(_Random.nextDouble() < _ReorderProbability)
+		{
+			//held back, so the packets behind it overtake it
+			deliveryAt += TimeUnit.MILLISECONDS.toNanos(_ReorderDelay);
+		}else
+		{
+			deliveryAt = Math.max(deliveryAt, _LastDelivery);
+			_LastDelivery = deliveryAt;
+		}
+		
+		int copies = _Random.nextDouble() < _DuplicateProbability ? 2 : 1;
+		for(int i = 0; i < copies; i++)
+		{
+			if(deliveryAt == now && _InFlight.isEmpty())
+				delivery.run();
+			else
+				_InFlight.add(new Delivery(deliveryAt, _Sequence++, delivery));
+		}
+	}
+	
+	/**
+	 * stops delivering delayed packets
+	 */
+	public void shutdown()
+	{
+		_DeliveryThread.interrupt();
+	}
+}
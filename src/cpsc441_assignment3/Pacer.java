@@ -0,0 +1,80 @@
+package cpsc441_assignment3;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pacer Class
+ *
+ * A token bucket that spreads datagrams evenly at a target rate. Each datagram moves the time the next one may go out on
+ * by its size divided by the rate, and the sending thread parks until then. Credit for time spent idle is capped at
+ * MAX_CREDIT, so a sender that falls behind (or oversleeps) catches up with a short burst at most, not a window's worth.
+ *
+ * Only one thread may send through a pacer, the rate can be changed from any thread.
+ *
+ * @author Tyrone
+ */
+public class Pacer {
+	private static final long MAX_CREDIT = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private volatile double _Rate;
+	private long _NextSend;
+	private long _WaitTime;
+
+	/**
+	 * @param rate bytes per second, or Double.POSITIVE_INFINITY not to pace
+	 */
+	public Pacer(double rate)
+	{
+		_Rate = rate;
+		_NextSend = System.nanoTime();
+		_WaitTime = 0;
+	}
+
+	/**
+	 * @param rate bytes per second, or Double.POSITIVE_INFINITY not to pace
+	 */
+	public void setRate(double rate)
+	{
+		_Rate = rate;
+	}
+
+	public double getRate()
+	{
+		return _Rate;
+	}
+
+	/**
+	 * @return total time the sending thread waited for its turn (in nano-seconds)
+	 */
+	public long getWaitTime()
+	{
+		return _WaitTime;
+	}
+
+	/**
+	 * blocks until the datagram may be sent, and takes its size out of the bucket
+	 *
+	 * @param length size of the datagram (in bytes)
+	 */
+	public void await(int length)
+	{
+		double rate = _Rate;
+		if(rate <= 0 || Double.isInfinite(rate))
+			return;
+
+		long now = System.nanoTime();
+		if(_NextSend < now - MAX_CREDIT)
+			_NextSend = now - MAX_CREDIT;
+
+		long wait;
+		while((wait = _NextSend - now) > 0)
+		{
+			LockSupport.parkNanos(wait);
+			long woken = System.nanoTime();
+			_WaitTime += woken - now;
+			now = woken;
+		}
+		_NextSend += (long)(length * 1e9 / rate);
+	}
+}
@@ -0,0 +1,74 @@
+package cpsc441_assignment3;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+
+import cpsc441.a3.Segment;
+
+/**
+ * PayloadSize Class
+ *
+ * Sizes the payload of the datagrams of a transfer. The payload is Segment.MAX_PAYLOAD_SIZE unless both ends agree on
+ * another size in the handshake, up to what fits an unfragmented jumbo frame. Segment itself never holds more than its
+ * maximum, so larger payloads are only ever encoded by SegmentRing and MappedFile and decoded by ReceiveSession, all with
+ * the same 4 byte little endian header.
+ *
+ * probe() picks the largest payload that fits the MTU of the local interface a connection goes out on. It does not
+ * discover a smaller MTU further along the path.
+ *
+ * @author Tyrone
+ */
+public class PayloadSize {
+	public static final int HEADER_SIZE = Segment.MAX_SEGMENT_SIZE - Segment.MAX_PAYLOAD_SIZE; //bytes
+	public static final int DEFAULT = Segment.MAX_PAYLOAD_SIZE; //bytes, what ffserver expects
+	public static final int MIN = 64; //bytes
+	public static final int MAX = 9000 - 20 - 8 - HEADER_SIZE; //bytes, a jumbo frame less the IPv4 and UDP headers
+
+	private static final int IPV4_HEADERS = 20 + 8;
+	private static final int IPV6_HEADERS = 40 + 8;
+
+	private PayloadSize()
+	{
+	}
+
+	/**
+	 * @param size a payload size
+	 * @return the size limited to MIN and MAX
+	 */
+	public static int clamp(int size)
+	{
+		return Math.max(MIN, Math.min(MAX, size));
+	}
+
+	/**
+	 * @param localAddress local address of a connection to the receiver
+	 * @return the largest payload a datagram on the interface can carry without being fragmented, limited to MIN and MAX,
+	 * or DEFAULT if the interface does not report its MTU
+	 */
+	public static int probe(InetAddress localAddress)
+	{
+		try{
+			NetworkInterface networkInterface = NetworkInterface.getByInetAddress(localAddress);
+			int mtu = networkInterface == null ? -1 : networkInterface.getMTU();
+			if(mtu <= 0)
+				return DEFAULT;
+			int headers = localAddress instanceof Inet6Address ? IPV6_HEADERS : IPV4_HEADERS;
+			return clamp(mtu - headers - HEADER_SIZE);
+		}catch(SocketException ex)
+		{
+			return DEFAULT;
+		}
+	}
+
+	/**
+	 * @param length number of bytes to send
+	 * @param payloadSize payload of every segment but the last
+	 * @return the number of segments the bytes take up
+	 */
+	public static long segmentCount(long length, int payloadSize)
+	{
+		return (length + payloadSize - 1) / payloadSize;
+	}
+}
@@ -0,0 +1,193 @@
+package cpsc441_assignment3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * ReadAhead Class
+ *
+ * Reads a stream ahead of its reader on a thread of a pool shared with the transfer. The thread fills blocks from a fixed pool of buffers and
+ * queues them in order, and stops once every buffer is queued, so at most the depth of the pool is read ahead. The
+ * reader takes the blocks off the queue and hands each buffer back once it has copied it out. A slow read of the stream
+ * then only stalls the reader once the queued blocks run out, and a reader held up by a full window leaves the reads
+ * to carry on in the meantime.
+ *
+ * A failure to read the stream is passed on to the reader after the blocks read before it.
+ *
+ * @author Tyrone
+ */
+public class ReadAhead extends InputStream {
+	/**
+	 * A buffer and how much of it was filled
+	 */
+	private static class Block {
+		private byte[] _Data;
+		private int _Length;
+		private IOException _Error;
+
+		public Block(int size)
+		{
+			_Data = new byte[size];
+		}
+	}
+
+	private InputStream _Input;
+	private BlockingQueue<Block> _Free;
+	private BlockingQueue<Block> _Filled;
+	private Block _Current;
+	private int _Position;
+	private boolean _Finished;
+	private Future<?> _Reader;
+	private AtomicBoolean _Started;
+	private CountDownLatch _Stopped;
+
+	/**
+	 * starts reading the stream
+	 *
+	 * @param input the stream to read ahead of
+	 * @param blockSize bytes read in one go, best the payload of a segment
+	 * @param depth number of blocks read ahead
+	 * @param executor runs the reading thread, and needs a free thread for it
+	 */
+	public ReadAhead(InputStream input, int blockSize, int depth, ExecutorService executor)
+	{
+		_Input = input;
+		_Free = new ArrayBlockingQueue<Block>(depth);
+		_Filled = new ArrayBlockingQueue<Block>(depth);
+		for(int i = 0; i < depth; i++)
+			_Free.add(new Block(blockSize));
+		_Current = null;
+		_Position = 0;
+		_Finished = false;
+		_Started = new AtomicBoolean(false);
+		_Stopped = new CountDownLatch(1);
+
+		_Reader = executor.submit(new Runnable(){
+			public void run()
+			{
+				//closed before a thread got to it
+				if(!_Started.compareAndSet(false, true))
+					return;
+				try{
+					readBlocks();
+				}finally
+				{
+					_Stopped.countDown();
+				}
+			}
+		});
+	}
+
+	/**
+	 * the reading thread, fills free blocks until the end of the stream. The last block queued is empty, or carries the
+	 * error the stream failed with
+	 */
+	private void readBlocks()
+	{
+		try{
+			while(true)
+			{
+				Block block = _Free.take();
+				block._Length = 0;
+				try{
+					int amountRead;
+					while(block._Length < block._Data.length
+							&& (amountRead = _Input.read(block._Data, block._Length, block._Data.length - block._Length)) != -1)
+						block._Length += amountRead;
+				}catch(IOException ex)
+				{
+					block._Error = ex;
+				}
+
+				_Filled.put(block);
+				if(block._Length < block._Data.length || block._Error != null)
+				{
+					//a short block is the last one, make sure the reader sees an empty one after it
+					if(block._Length > 0 && block._Error == null)
+					{
+						Block end = _Free.take();
+						end._Length = 0;
+						_Filled.put(end);
+					}
+					return;
+				}
+			}
+		}catch(InterruptedException ex)
+		{
+			//closed before the end of the stream
+		}
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		byte[] single = new byte[1];
+		return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException
+	{
+		if(length == 0)
+			return 0;
+
+		while(_Current == null || _Position == _Current._Length)
+		{
+			if(_Finished)
+				return -1;
+			if(_Current != null)
+				_Free.add(_Current);
+
+			try{
+				_Current = _Filled.take();
+			}catch(InterruptedException ex)
+			{
+				_Current = null;
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for the read-ahead");
+			}
+			_Position = 0;
+			if(_Current._Error != null)
+			{
+				//the stream is broken, whatever made it into the block is not handed out
+				IOException error = _Current._Error;
+				_Current._Length = 0;
+				_Finished = true;
+				throw error;
+			}
+			if(_Current._Length == 0)
+				_Finished = true;
+		}
+
+		int amount = Math.min(length, _Current._Length - _Position);
+		System.arraycopy(_Current._Data, _Position, buffer, offset, amount);
+		_Position += amount;
+		return amount;
+	}
+
+	/**
+	 * stops the reading thread, waiting for it to let go of the stream, and closes the stream
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if(!_Started.compareAndSet(false, true))
+		{
+			_Reader.cancel(true);
+			try{
+				_Stopped.await();
+			}catch(InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		_Input.close();
+	}
+}
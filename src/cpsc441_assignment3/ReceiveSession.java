@@ -0,0 +1,251 @@
+package cpsc441_assignment3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+import cpsc441.a3.Segment;
+
+/**
+ * ReceiveSession Class
+ *
+ * The receiving end of one transfer on FastFtpServer. Payloads are written to the file in sequence number order, starting
+ * at the offset the sender asked for, so several sessions can each fill in their own range of the same file. The
+ * payloads of a compressed transfer go through a BlockDecompressor, which writes each block once it is complete.
+ *
+ * A delta transfer rebuilds the file from the copy already there: the payloads go through a DeltaDecoder into a
+ * file next to it, which only replaces the copy once the sender's last instruction has arrived. A transfer that breaks
+ * off, or fails because the copy changed under it, leaves the copy in place.
+ *
+ * Sequence numbers start at the SEQUENCE_BASE of the request, 0 unless set, and are compared as serial numbers so they
+ * can wrap around, see SequenceNumber.
+ * In Go-Back-N mode segments are only accepted in order and acked cumulatively with the next expected sequence number.
+ * In Selective Repeat mode out of order segments inside the window are buffered and every segment is acked individually.
+ *
+ * @author Tyrone
+ */
+public class ReceiveSession {
+	private RetransmissionMode _Mode;
+	private int _WindowSize;
+	private RandomAccessFile _FileOutput;
+	private BlockDecompressor _Decompressor;
+	private File _File;
+	private File _DeltaFile;
+	private RandomAccessFile _Basis;
+	private DeltaDecoder _Delta;
+	private DeltaSignatures _Signatures;
+	private boolean _Failed;
+	private int _Expected;
+	private Map<Integer, byte[]> _OutOfOrder;
+
+	/**
+	 * opens the file for the transfer. A range is written in place, the whole file replaces whatever was there. A
+	 * resumed transfer keeps the file up to the offset asked for, or up to its end if it is shorter, and sets the
+	 * request's OFFSET to where it continues. A delta transfer of the whole file hashes the copy there is, and sets the
+	 * request's DELTA to the block size it was hashed in, or to 0 if there is nothing to sync against
+	 *
+	 * @param file file to write to
+	 * @param request the handshake the sender opened the transfer with
+	 * @param mode which style of acks to send back
+	 * @param windowSize receive window (in segments), only used for Selective Repeat
+	 * @param executor the pool hashing the copy of a delta transfer
+	 * @throws IOException if the file cannot be opened
+	 */
+	public ReceiveSession(File file, Handshake request, RetransmissionMode mode, int windowSize, ExecutorService executor) throws IOException
+	{
+		_Mode = mode;
+		_WindowSize = windowSize;
+		_Expected = (int)request.getOption(Handshake.SEQUENCE_BASE, 0);
+		_OutOfOrder = new HashMap<Integer, byte[]>();
+		_File = file;
+		_Failed = false;
+		_Decompressor = null;
+		_Delta = null;
+		_Signatures = null;
+
+		if(request.hasOption(Handshake.DELTA))
+		{
+			//only a whole file is rebuilt from the copy, a range or a resume writes in place
+			boolean whole = !request.hasOption(Handshake.OFFSET) && !request.hasOption(Handshake.RESUME);
+			int blockSize = DeltaSignatures.clamp((int)request.getOption(Handshake.DELTA, 0));
+			if(whole && file.length() > 0)
+				_Signatures = DeltaSignatures.compute(file, blockSize, Runtime.getRuntime().availableProcessors(), executor);
+			request.setOption(Handshake.DELTA, _Signatures != null ? blockSize : 0);
+		}
+
+		_DeltaFile = _Signatures != null ? new File(file.getPath() + ".delta") : null;
+		_FileOutput = new RandomAccessFile(_Signatures != null ? _DeltaFile : file, "rw");
+		if(_Signatures != null)
+		{
+			//the copy is only read, the file is rebuilt next to it from the start
+			_FileOutput.setLength(0);
+			_Basis = new RandomAccessFile(file, "r");
+			_Delta = new DeltaDecoder(_Basis, _Signatures, _FileOutput);
+		}else if(request.hasOption(Handshake.RESUME))
+		{
+			//only bytes written in order are on disk, anything past the sender's checkpoint is sent again
+			long offset = Math.min(request.getOption(Handshake.RESUME, 0), _FileOutput.length());
+			_FileOutput.setLength(offset);
+			_FileOutput.seek(offset);
+			request.setOption(Handshake.OFFSET, offset);
+		}else if(request.hasOption(Handshake.OFFSET))
+		{
+			//every range sets the same size, so it does not matter which one gets here first
+			if(request.hasOption(Handshake.FILE_SIZE))
+				_FileOutput.setLength(request.getOption(Handshake.FILE_SIZE, 0));
+			_FileOutput.seek(request.getOption(Handshake.OFFSET, 0));
+		}else
+		{
+			_FileOutput.setLength(0);
+		}
+		
+		if(request.hasOption(Handshake.PAYLOAD_SIZE))
+			request.setOption(Handshake.PAYLOAD_SIZE, PayloadSize.clamp((int)request.getOption(Handshake.PAYLOAD_SIZE, PayloadSize.DEFAULT)));
+		
+		//a compressed stream only makes sense from the start of the file, ranges and resumes are declined, and a delta
+		//is sent as it is
+		if(request.getOption(Handshake.COMPRESSION, 0) > 0)
+		{
+			if(request.hasOption(Handshake.OFFSET) || _Delta != null)
+				request.setOption(Handshake.COMPRESSION, 0);
+			else
+				_Decompressor = new BlockDecompressor(_FileOutput);
+		}
+	}
+
+	/**
+	 * @return the signatures of the copy a delta transfer is rebuilt from, to send after the reply, or null for any other
+	 * transfer
+	 */
+	public DeltaSignatures getSignatures()
+	{
+		return _Signatures;
+	}
+
+	/**
+	 * handles a segment once it has made it across the data link
+	 *
+	 * @param data the encoded segment
+	 * @return the ack to send back, or null if the segment is dropped without one
+	 * @throws IOException if the payload cannot be written or decoded, which fails the transfer
+	 */
+	public synchronized Segment processSegment(byte[] data) throws IOException
+	{
+		//delayed segments can still arrive after the transfer ended, or failed
+		if(_FileOutput == null || _Failed || data.length < PayloadSize.HEADER_SIZE)
+			return null;
+
+		//Segment cannot hold a negotiated payload past its maximum, so the datagram is decoded here
+		int seqNum = (data[0] & 0xff) | (data[1] & 0xff) << 8 | (data[2] & 0xff) << 16 | (data[3] & 0xff) << 24;
+
+		//sequence numbers only use 31 bits, SequenceNumber ignores the sign bit and Segment refuses it, so such a datagram
+		//is not from a sender of ours
+		if(seqNum < 0)
+			return null;
+
+		byte[] payload = Arrays.copyOfRange(data, PayloadSize.HEADER_SIZE, data.length);
+		if(_Mode == RetransmissionMode.SELECTIVE_REPEAT)
+		{
+			//beyond the window, the sender cannot have sent this yet
+			if(!SequenceNumber.isBefore(seqNum, SequenceNumber.add(_Expected, _WindowSize)))
+				return null;
+
+			if(seqNum == _Expected)
+			{
+				writePayload(payload);
+				_Expected = SequenceNumber.add(_Expected, 1);
+				while(_OutOfOrder.containsKey(_Expected))
+				{
+					writePayload(_OutOfOrder.remove(_Expected));
+					_Expected = SequenceNumber.add(_Expected, 1);
+				}
+			}else if(SequenceNumber.isAfter(seqNum, _Expected))
+			{
+				_OutOfOrder.put(seqNum, payload);
+			}
+
+			//segments below the window are acked again, our earlier ack was lost
+			return new Segment(seqNum);
+		}
+
+		if(seqNum == _Expected)
+		{
+			writePayload(payload);
+			_Expected = SequenceNumber.add(_Expected, 1);
+		}
+		return new Segment(_Expected);
+	}
+
+	/**
+	 * writes the next payload in order to the file, through the decompressor for a compressed transfer, or the decoder
+	 * for a delta. A payload that fails part way has been partly consumed by the decoder, so the transfer cannot go on
+	 * with a resend of it and fails instead
+	 */
+	private void writePayload(byte[] payload) throws IOException
+	{
+		try{
+			if(_Delta != null)
+				_Delta.write(payload);
+			else if(_Decompressor != null)
+				_Decompressor.write(payload);
+			else
+				_FileOutput.write(payload);
+		}catch(IOException ex)
+		{
+			_Failed = true;
+			throw ex;
+		}
+	}
+
+	/**
+	 * @return true once a payload could not be written, every later segment is dropped
+	 */
+	public synchronized boolean isFailed()
+	{
+		return _Failed;
+	}
+
+	/**
+	 * ends the transfer, later segments are ignored. A failed transfer was already reported when its payload could not
+	 * be written, and is not finished
+	 *
+	 * @throws IOException if the file cannot be closed, a compressed transfer ended part way through a block, or a delta
+	 * before its last instruction
+	 */
+	public synchronized void close() throws IOException
+	{
+		if(_FileOutput != null)
+		{
+			boolean complete = false;
+			try{
+				if(!_Failed)
+				{
+					if(_Decompressor != null)
+						_Decompressor.finish();
+					if(_Delta != null)
+						_Delta.finish();
+					complete = true;
+				}
+			}finally
+			{
+				_FileOutput.close();
+				_FileOutput = null;
+				if(_Decompressor != null)
+					_Decompressor.close();
+				if(_Basis != null)
+					_Basis.close();
+				if(_Delta != null && !complete)
+					_DeltaFile.delete();
+			}
+			
+			if(_Delta != null && complete)
+				Files.move(_DeltaFile.toPath(), _File.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+}
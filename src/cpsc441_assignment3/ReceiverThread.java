@@ -8,13 +8,16 @@ import cpsc441.a3.Segment;
 /**
  * ReceiverThread runs in a loop waiting for acknowledgements from the UDP connection until shutdown is called or the
  * thread is interrupted. 
+ * 
+ * A FileSession keeps one ReceiverThread for all of its files and hands it from one FastFtp to the next. Acks left over
+ * from earlier files come before the current file's first sequence number, and are ignored like any other old ack.
  * @author Tyrone
  *
  */
 public class ReceiverThread extends Thread {
 	private DatagramSocket _UDPSocket;
-	private FastFtp _FtpParent;
-	private boolean _Shutdown;
+	private volatile FastFtp _FtpParent;
+	private volatile boolean _Shutdown;
 	
 	public ReceiverThread(DatagramSocket socket, FastFtp parent)
 	{
@@ -23,21 +26,45 @@ public class ReceiverThread extends Thread {
 		_Shutdown = false;
 	}
 	
+	/**
+	 * hands the acks to another sender
+	 * 
+	 * @param parent the sender acks are passed to, or null to drop them
+	 */
+	public void setParent(FastFtp parent)
+	{
+		_FtpParent = parent;
+	}
+	
 	public void run()
 	{
-		DatagramPacket packet;
 		byte[]packetData = new byte[Segment.MAX_SEGMENT_SIZE];
+		DatagramPacket packet = new DatagramPacket(packetData, packetData.length);
+		Segment ack = new Segment();
 		while(!Thread.currentThread().isInterrupted() && !_Shutdown){
-			packet = new DatagramPacket(packetData, packetData.length);
+			//the packet and ack are reused for every datagram, FastFtp only reads the sequence number during processACK
+			packet.setLength(packetData.length);
 			try{
 				_UDPSocket.receive(packet);
-				_FtpParent.processACK(new Segment(packet));
+				FastFtp parent = _FtpParent;
+				if(parent == null)
+					continue;
+				ack.setSeqNum(decodeSeqNum(packetData));
+				parent.processACK(ack);
 			}catch(Exception ex){
 				//
 			}
 		}
 	}
 	
+	/**
+	 * reads the sequence number from an encoded segment header, the same way as Segment.setBytes()
+	 */
+	private static int decodeSeqNum(byte[] data)
+	{
+		return ((data[3] & 0xFF) << 24) + ((data[2] & 0xFF) << 16) + ((data[1] & 0xFF) << 8) + (data[0] & 0xFF);
+	}
+	
 	public void shutdown()
 	{
 		_Shutdown = true;
@@ -0,0 +1,15 @@
+package cpsc441_assignment3;
+
+/**
+ * The retransmission strategies FastFtp can use for the send window
+ * 
+ * GO_BACK_N expects cumulative acks (the next sequence number the receiver wants) and resends the whole window on a timeout.
+ * SELECTIVE_REPEAT expects an ack carrying the sequence number of each individual segment and only resends the segments
+ * whose own timer expires.
+ * 
+ * @author Tyrone
+ */
+public enum RetransmissionMode {
+	GO_BACK_N,
+	SELECTIVE_REPEAT
+}
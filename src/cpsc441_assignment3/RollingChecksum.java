@@ -0,0 +1,69 @@
+package cpsc441_assignment3;
+
+/**
+ * RollingChecksum Class
+ *
+ * The weak checksum of a delta transfer, the one rsync uses. Over a window of bytes x_0 .. x_(n-1), a is the sum of the
+ * bytes and b the sum of (n - i) * x_i, both modulo 2^16, and the checksum is a in the low and b in the high half. Moving
+ * the window on by a byte only takes the byte leaving it and the byte entering it, so the sender can check every
+ * offset of its file against the receiver's blocks for a few operations per byte.
+ *
+ * @author Tyrone
+ */
+public class RollingChecksum {
+	private int _A;
+	private int _B;
+	private int _Length;
+
+	/**
+	 * computes the checksum of a new window from scratch
+	 *
+	 * @param data buffer holding the window
+	 * @param offset where the window starts
+	 * @param length size of the window (in bytes)
+	 */
+	public void reset(byte[] data, int offset, int length)
+	{
+		_A = 0;
+		_B = 0;
+		_Length = length;
+		for(int i = 0; i < length; i++)
+		{
+			int x = data[offset + i] & 0xff;
+			_A += x;
+			_B += (length - i) * x;
+		}
+	}
+
+	/**
+	 * moves the window on by one byte
+	 *
+	 * @param out the first byte of the window, which leaves it
+	 * @param in the byte just past the window, which enters it
+	 */
+	public void roll(byte out, byte in)
+	{
+		//ints overflow modulo 2^32, which leaves the low 16 bits that make up the checksum correct
+		int x = out & 0xff;
+		_A += (in & 0xff) - x;
+		_B += _A - _Length * x;
+	}
+
+	/**
+	 * @return the checksum of the current window
+	 */
+	public int getValue()
+	{
+		return (_A & 0xffff) | (_B << 16);
+	}
+
+	/**
+	 * @return the checksum of a single window
+	 */
+	public static int of(byte[] data, int offset, int length)
+	{
+		RollingChecksum checksum = new RollingChecksum();
+		checksum.reset(data, offset, length);
+		return checksum.getValue();
+	}
+}
@@ -0,0 +1,120 @@
+package cpsc441_assignment3;
+
+/**
+ * RttEstimator Class
+ * 
+ * Estimates the round trip time of the connection and derives the retransmission timeout from it, following
+ * Jacobson's algorithm as described in RFC 6298. The caller is responsible for Karn's rule: samples must only be taken
+ * from segments that were never retransmitted.
+ * 
+ * The backoff is also cleared whenever an ack advances the window. With Go-Back-N every segment in the window is
+ * retransmitted on a timeout, so waiting for a valid sample alone could keep the timer backed off for the rest of the transfer.
+ * 
+ * @author Tyrone
+ */
+public class RttEstimator {
+	public static final long MIN_RTO = 10; //milli-seconds
+	public static final long MAX_RTO = 60000; //milli-seconds
+	
+	private static final double ALPHA = 1.0 / 8;
+	private static final double BETA = 1.0 / 4;
+	private static final int K = 4;
+	private static final double GRANULARITY = 1.0; //milli-seconds
+	
+	private double _SmoothedRtt;
+	private double _RttVariance;
+	private double _MinRtt;
+	private long _Rto;
+	private int _Backoff;
+	private boolean _HasSample;
+	
+	/**
+	 * @param initialRto the timeout to use until the first sample arrives (in milli-seconds)
+	 */
+	public RttEstimator(long initialRto)
+	{
+		_Rto = clamp(initialRto);
+		_Backoff = 0;
+		_HasSample = false;
+	}
+	
+	/**
+	 * updates the estimate with a new measurement. A valid sample also clears any backoff
+	 * 
+	 * @param rtt the measured round trip time (in milli-seconds)
+	 */
+	public synchronized void addSample(double rtt)
+	{
+		if(!_HasSample)
+		{
+			_SmoothedRtt = rtt;
+			_RttVariance = rtt / 2;
+			_MinRtt = rtt;
+			_HasSample = true;
+		}else
+		{
+			_RttVariance = (1 - BETA) * _RttVariance + BETA * Math.abs(_SmoothedRtt - rtt);
+			_SmoothedRtt = (1 - ALPHA) * _SmoothedRtt + ALPHA * rtt;
+			_MinRtt = Math.min(_MinRtt, rtt);
+		}
+		
+		_Rto = clamp((long)Math.ceil(_SmoothedRtt + Math.max(GRANULARITY, K * _RttVariance)));
+		_Backoff = 0;
+	}
+	
+	/**
+	 * doubles the timeout after a retransmission timer expires
+	 */
+	public synchronized void backoff()
+	{
+		//stop counting once the timeout is pinned at the maximum
+		if((_Rto << _Backoff) < MAX_RTO)
+			_Backoff++;
+	}
+	
+	/**
+	 * returns the timeout to the current estimate once new data has been acknowledged
+	 */
+	public synchronized void resetBackoff()
+	{
+		_Backoff = 0;
+	}
+	
+	/**
+	 * @return the current retransmission timeout (in milli-seconds), including any backoff
+	 */
+	public synchronized long getRto()
+	{
+		return clamp(_Rto << _Backoff);
+	}
+	
+	/**
+	 * @return the smoothed round trip time (in milli-seconds), or 0 if no sample has been taken yet
+	 */
+	public synchronized double getSmoothedRtt()
+	{
+		return _SmoothedRtt;
+	}
+	
+	/**
+	 * @return the smallest round trip time measured (in milli-seconds), the path without any queueing, or 0 if no sample
+	 * has been taken yet
+	 */
+	public synchronized double getMinRtt()
+	{
+		return _MinRtt;
+	}
+	
+	/**
+	 * @return the round trip time variance (in milli-seconds), or 0 if no sample has been taken yet
+	 */
+	public synchronized double getRttVariance()
+	{
+		return _RttVariance;
+	}
+	
+	private static long clamp(long rto)
+	{
+		return Math.max(MIN_RTO, Math.min(MAX_RTO, rto));
+	}
+}
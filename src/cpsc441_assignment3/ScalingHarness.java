@@ -0,0 +1,136 @@
+package cpsc441_assignment3;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Runs growing numbers of concurrent transfers through a TransferManager against an in-process FastFtpServer, and reports
+ * the peak thread count and the peak resident memory of the JVM for each. Run it once per mode, in separate JVMs, to
+ * compare platform and virtual threads. The acks are delayed so the transfers really overlap.
+ *
+ * Resident memory is read from /proc/self/status, on other systems the used heap is reported instead. Both modes include
+ * the server, whose session threads are always platform threads.
+ *
+ * usage: java ScalingHarness platform|virtual sizeKB delay count...
+ *
+ * @author Tyrone
+ */
+class ScalingHarness {
+	private static final int SAMPLE_INTERVAL = 5; // milli-seconds
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.out.println("wrong number of arguments, try again.");
+			System.out.println("usage: java ScalingHarness platform|virtual sizeKB delay count...");
+			System.exit(0);
+		}
+
+		boolean virtual = args[0].equals("virtual");
+		int sizeKB = Integer.parseInt(args[1]);
+		long delay = Long.parseLong(args[2]);
+		int maxCount = 0;
+		for (int i = 3; i < args.length; i++)
+			maxCount = Math.max(maxCount, Integer.parseInt(args[i]));
+
+		if (virtual && !VirtualThreads.isSupported()) {
+			System.out.println("virtual threads need Java 21, running on platform threads instead");
+			virtual = false;
+		}
+
+		File directory = ThroughputHarness.createTempDirectory();
+		File outputDirectory = new File(directory, "received");
+		outputDirectory.mkdir();
+		File[] files = new File[maxCount];
+		for (int i = 0; i < maxCount; i++)
+			files[i] = ThroughputHarness.createTestFile(directory, "scaling" + i + ".bin", sizeKB * 1024L, i);
+
+		NetworkEmulator ackLink = new NetworkEmulator();
+		ackLink.setDelay(delay, 0);
+		FastFtpServer server = new FastFtpServer(0, RetransmissionMode.GO_BACK_N, 50, outputDirectory);
+		server.setAckLink(ackLink);
+		Thread serverThread = new Thread(server);
+		serverThread.setDaemon(true);
+		serverThread.start();
+
+		// the transfers log their handshakes and timeouts through the EventLog, only warnings and errors are kept
+		PrintStream console = System.out;
+		EventLog.getLog().setLevel(EventLog.Level.WARN);
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		console.printf("%s threads, %d KB per file, ack delay %d ms, resident memory %s\n", virtual ? "virtual" : "platform",
+				sizeKB, delay, residentMemory() >= 0 ? "from /proc" : "not available, used heap instead");
+		console.printf("%10s %10s %14s %16s %16s %10s\n", "transfers", "time (s)", "peak threads", "baseline (MB)", "peak (MB)", "intact");
+
+		for (int i = 3; i < args.length; i++) {
+			int count = Integer.parseInt(args[i]);
+			System.gc();
+			final long baseline = memory();
+			final long[] peak = {baseline};
+			threads.resetPeakThreadCount();
+
+			Thread sampler = new Thread(new Runnable() {
+				public void run() {
+					while (!Thread.currentThread().isInterrupted()) {
+						peak[0] = Math.max(peak[0], memory());
+						try {
+							Thread.sleep(SAMPLE_INTERVAL);
+						} catch (InterruptedException ex) {
+							return;
+						}
+					}
+				}
+			});
+			sampler.setDaemon(true);
+			sampler.start();
+
+			long start = System.nanoTime();
+			TransferManager manager = new TransferManager(count, 50, 100, RetransmissionMode.GO_BACK_N, virtual);
+			for (int j = 0; j < count; j++)
+				manager.submit("localhost", server.getPort(), files[j].getPath());
+			manager.shutdown();
+			double seconds = (System.nanoTime() - start) / 1e9;
+			sampler.interrupt();
+			sampler.join();
+
+			// the server finishes a file once it reads the end of transmission byte
+			Thread.sleep(100);
+			boolean intact = true;
+			for (TransferJob job : manager.getJobs())
+				intact &= job.getState() == TransferJob.State.COMPLETED
+						&& ThroughputHarness.sameContents(new File(job.getFileName()), new File(outputDirectory, new File(job.getFileName()).getName()));
+
+			console.printf("%10d %10.2f %14d %16.1f %16.1f %10s\n", count, seconds, threads.getPeakThreadCount(),
+					baseline / (1024.0 * 1024.0), Math.max(peak[0], memory()) / (1024.0 * 1024.0), intact ? "yes" : "NO");
+		}
+
+		server.shutdown();
+		ackLink.shutdown();
+	}
+
+	private static long memory() {
+		long resident = residentMemory();
+		if (resident >= 0)
+			return resident;
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	// the VmRSS line of /proc/self/status, in bytes, or -1 if there is none
+	private static long residentMemory() {
+		try (BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("VmRSS:"))
+					return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+			}
+		} catch (IOException ex) {
+			// not on Linux
+		}
+		return -1;
+	}
+}
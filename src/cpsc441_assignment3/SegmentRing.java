@@ -0,0 +1,251 @@
+package cpsc441_assignment3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import cpsc441.a3.Segment;
+
+/**
+ * SegmentRing Class
+ * 
+ * A fixed ring of pre-allocated segments, at least one slot per segment in the window, indexed by sequence number
+ * modulo the number of slots. The number of slots is a power of two so the ring stays in order when sequence numbers
+ * wrap around, see SequenceNumber. Each slot owns a buffer for the encoded header and payload, a DatagramPacket and a ByteBuffer wrapping that
+ * buffer and a Segment object for the send queue, so reading, sending and resending a segment allocate nothing. The
+ * buffers hold Segment.MAX_PAYLOAD_SIZE bytes of payload until a larger payload size is negotiated, see PayloadSize.
+ * 
+ * The Segment in a slot only carries the sequence number, its payload lives in the slot buffer. A slot is reused once
+ * the window has moved past it, so callers must only fill a slot after waiting for room in the window. A write queued
+ * for another thread, see BatchTransmitter, retains the slot until it is done, and filling the slot waits for that, so
+ * a late resend never goes out with half of the next segment in it.
+ * 
+ * @author Tyrone
+ */
+public class SegmentRing {
+	private static final int HEADER_SIZE = PayloadSize.HEADER_SIZE;
+	
+	private int _PayloadSize;
+	private int _SlotMask;
+	private byte[][] _Buffers;
+	private DatagramPacket[] _Packets;
+	private ByteBuffer[] _Views;
+	private Segment[] _Segments;
+	private AtomicIntegerArray _Retained;
+	
+	/**
+	 * @param capacity the window size (in segments), rounded up to a power of two for the number of slots
+	 */
+	public SegmentRing(int capacity)
+	{
+		int slots = SequenceNumber.slots(capacity);
+		_SlotMask = slots - 1;
+		_Segments = new Segment[slots];
+		for(int i = 0; i < slots; i++)
+			_Segments[i] = new Segment();
+		_Retained = new AtomicIntegerArray(slots);
+		setPayloadSize(Segment.MAX_PAYLOAD_SIZE);
+	}
+	
+	/**
+	 * sizes the slot buffers for a payload size, dropping whatever they held. Only to be called before anything is sent,
+	 * and before setDestination()
+	 * 
+	 * @param payloadSize largest payload of a segment (in bytes)
+	 */
+	public void setPayloadSize(int payloadSize)
+	{
+		int capacity = _Segments.length;
+		_PayloadSize = payloadSize;
+		_Buffers = new byte[capacity][HEADER_SIZE + payloadSize];
+		_Packets = new DatagramPacket[capacity];
+		_Views = new ByteBuffer[capacity];
+		for(int i = 0; i < capacity; i++)
+		{
+			_Packets[i] = new DatagramPacket(_Buffers[i], _Buffers[i].length);
+			_Views[i] = ByteBuffer.wrap(_Buffers[i]);
+		}
+	}
+	
+	/**
+	 * @return largest payload a slot holds (in bytes)
+	 */
+	public int getPayloadSize()
+	{
+		return _PayloadSize;
+	}
+	
+	/**
+	 * sets where every packet in the ring is sent to
+	 * 
+	 * @param address address of the server
+	 * @param port UDP port of the server
+	 */
+	public void setDestination(InetAddress address, int port)
+	{
+		for(int i = 0; i < _Packets.length; i++)
+		{
+			_Packets[i].setAddress(address);
+			_Packets[i].setPort(port);
+		}
+	}
+	
+	/**
+	 * reads the next payload of the stream into the slot for the given sequence number
+	 * 
+	 * @param seqNum sequence number of the new segment
+	 * @param input stream to read the payload from
+	 * @return the slot's segment, or null if the stream is exhausted
+	 * @throws IOException if the stream cannot be read
+	 */
+	public Segment fill(int seqNum, InputStream input) throws IOException
+	{
+		return fill(seqNum, input, _PayloadSize);
+	}
+	
+	/**
+	 * reads at most maxLength bytes of the stream into the slot for the given sequence number
+	 * 
+	 * @param seqNum sequence number of the new segment
+	 * @param input stream to read the payload from
+	 * @param maxLength largest payload to read, at most the payload size
+	 * @return the slot's segment, or null if the stream is exhausted
+	 * @throws IOException if the stream cannot be read
+	 */
+	public Segment fill(int seqNum, InputStream input, int maxLength) throws IOException
+	{
+		awaitReleased(index(seqNum));
+		byte[] buffer = _Buffers[index(seqNum)];
+		int length = 0;
+		int amountRead;
+		
+		//a short read does not mean the end of the file, keep going until the payload is full
+		while(length < maxLength && (amountRead = input.read(buffer, HEADER_SIZE + length, maxLength - length)) != -1)
+			length += amountRead;
+		
+		if(length == 0)
+			return null;
+		
+		return encode(seqNum, length);
+	}
+	
+	/**
+	 * copies a segment built elsewhere into its slot
+	 * 
+	 * @param seg the segment to copy
+	 * @return the slot's segment
+	 */
+	public Segment put(Segment seg)
+	{
+		if(holds(seg))
+			return seg;
+		
+		awaitReleased(index(seg.getSeqNum()));
+		System.arraycopy(seg.getPayload(), 0, _Buffers[index(seg.getSeqNum())], HEADER_SIZE, seg.getLength());
+		return encode(seg.getSeqNum(), seg.getLength());
+	}
+	
+	/**
+	 * claims the slot for a segment whose payload is kept elsewhere, only the sequence number is set
+	 * 
+	 * @param seqNum sequence number of the new segment
+	 * @return the slot's segment
+	 */
+	public Segment mark(int seqNum)
+	{
+		Segment seg = _Segments[index(seqNum)];
+		seg.setSeqNum(seqNum);
+		return seg;
+	}
+	
+	/**
+	 * @return true if the segment is the one currently held by its slot
+	 */
+	public boolean holds(Segment seg)
+	{
+		return _Segments[index(seg.getSeqNum())] == seg;
+	}
+	
+	/**
+	 * @return the segment held by the slot for the given sequence number
+	 */
+	public Segment getSegment(int seqNum)
+	{
+		return _Segments[index(seqNum)];
+	}
+	
+	/**
+	 * @return the payload length of the segment held by the slot for the given sequence number
+	 */
+	public int getPayloadLength(int seqNum)
+	{
+		return _Packets[index(seqNum)].getLength() - HEADER_SIZE;
+	}
+	
+	/**
+	 * @return the encoded packet held by the slot for the given sequence number
+	 */
+	public DatagramPacket getPacket(int seqNum)
+	{
+		return _Packets[index(seqNum)];
+	}
+	
+	/**
+	 * @return the encoded segment held by the slot for the given sequence number, ready to be written to a channel
+	 */
+	public ByteBuffer getBuffer(int seqNum)
+	{
+		int index = index(seqNum);
+		_Views[index].limit(_Packets[index].getLength()).position(0);
+		return _Views[index];
+	}
+	
+	/**
+	 * keeps the slot from being refilled until release() is called, while another thread still has to write it out
+	 * 
+	 * @param seqNum sequence number of the segment whose write is queued
+	 */
+	public void retain(int seqNum)
+	{
+		_Retained.incrementAndGet(index(seqNum));
+	}
+	
+	/**
+	 * ends a retain(), once the queued write has been done or skipped
+	 * 
+	 * @param seqNum sequence number the slot was retained for
+	 */
+	public void release(int seqNum)
+	{
+		_Retained.decrementAndGet(index(seqNum));
+	}
+	
+	//the queued writes only take as long as a send call, so the filling thread just gives up the processor meanwhile
+	private void awaitReleased(int index)
+	{
+		while(_Retained.get(index) != 0)
+			Thread.yield();
+	}
+	
+	private int index(int seqNum)
+	{
+		return seqNum & _SlotMask;
+	}
+	
+	//writes the header the same way as Segment.getBytes() and sizes the packet to the payload
+	private Segment encode(int seqNum, int length)
+	{
+		int index = index(seqNum);
+		byte[] buffer = _Buffers[index];
+		buffer[0] = (byte) (seqNum);
+		buffer[1] = (byte) (seqNum >>> 8);
+		buffer[2] = (byte) (seqNum >>> 16);
+		buffer[3] = (byte) (seqNum >>> 24);
+		_Packets[index].setLength(HEADER_SIZE + length);
+		_Segments[index].setSeqNum(seqNum);
+		return _Segments[index];
+	}
+}
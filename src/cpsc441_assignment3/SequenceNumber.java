@@ -0,0 +1,77 @@
+package cpsc441_assignment3;
+
+/**
+ * SequenceNumber Class
+ *
+ * Serial number arithmetic on the sequence numbers of segments, as described in RFC 1982. Segment only takes
+ * non-negative sequence numbers, so they are 31 bit serial numbers: they count up to Integer.MAX_VALUE and wrap around
+ * to 0. Numbers are compared by the distance between them instead of by their value, a is before b if b is less than
+ * 2^30 ahead of a. That holds across any wrap as long as the numbers compared are less than 2^30 apart, which every
+ * window is.
+ *
+ * Arrays indexed by sequence number have a power of two number of slots, so consecutive sequence numbers always land in
+ * consecutive slots, across the wrap as well.
+ *
+ * @author Tyrone
+ */
+public final class SequenceNumber {
+	public static final int MAX = Integer.MAX_VALUE;
+
+	private SequenceNumber()
+	{
+	}
+
+	/**
+	 * @param seqNum a sequence number
+	 * @param count how far to move it, negative to move back
+	 * @return the sequence number count segments on from seqNum, wrapped around
+	 */
+	public static int add(int seqNum, long count)
+	{
+		return (int)((seqNum + count) & MAX);
+	}
+
+	/**
+	 * @param from a sequence number
+	 * @param to a sequence number less than 2^30 away from it
+	 * @return how many segments to is ahead of from, negative if it is behind
+	 */
+	public static int distance(int from, int to)
+	{
+		//the difference in 31 bits, sign extended
+		return (to - from) << 1 >> 1;
+	}
+
+	/**
+	 * @return true if a comes before b
+	 */
+	public static boolean isBefore(int a, int b)
+	{
+		return distance(b, a) < 0;
+	}
+
+	/**
+	 * @return true if a comes after b
+	 */
+	public static boolean isAfter(int a, int b)
+	{
+		return distance(b, a) > 0;
+	}
+
+	/**
+	 * @return whichever of a and b comes later
+	 */
+	public static int max(int a, int b)
+	{
+		return isBefore(a, b) ? b : a;
+	}
+
+	/**
+	 * @param windowSize number of sequence numbers an array has to hold at once
+	 * @return the number of slots to give it, the smallest power of two at least that large
+	 */
+	public static int slots(int windowSize)
+	{
+		return windowSize <= 1 ? 1 : Integer.highestOneBit(windowSize - 1) << 1;
+	}
+}
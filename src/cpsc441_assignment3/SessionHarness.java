@@ -0,0 +1,99 @@
+package cpsc441_assignment3;
+
+import java.io.File;
+import java.io.PrintStream;
+
+/**
+ * Sends a directory of small files to an in-process FastFtpServer, once with a FastFtp and a connection of its own per
+ * file and once over a single FileSession, and reports files per second for each. The files are the same size, with
+ * different contents, so a file written over another one is noticed.
+ *
+ * The acks can be delayed, so every handshake costs a round trip as it would on a real link, and segments can be lost,
+ * so segments and acks of one file are still in flight once the next file has started. The session's sequence numbers
+ * start below SequenceNumber.MAX so they wrap around half way through the files.
+ *
+ * usage: java SessionHarness count sizeBytes [delay] [loss] [sr]
+ *
+ * @author Tyrone
+ */
+class SessionHarness {
+	private static final int WINDOW_SIZE = 50;
+	private static final int TIMEOUT = 100; // milli-seconds
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2 || args.length > 5) {
+			System.out.println("wrong number of arguments, try again.");
+			System.out.println("usage: java SessionHarness count sizeBytes [delay] [loss] [sr]");
+			System.exit(0);
+		}
+
+		int count = Integer.parseInt(args[0]);
+		long size = Long.parseLong(args[1]);
+		long delay = args.length > 2 && !args[2].equals("sr") ? Long.parseLong(args[2]) : 0;
+		double loss = args.length > 3 && !args[3].equals("sr") ? Double.parseDouble(args[3]) : 0;
+		RetransmissionMode mode = args[args.length - 1].equals("sr") ? RetransmissionMode.SELECTIVE_REPEAT : RetransmissionMode.GO_BACK_N;
+
+		File directory = ThroughputHarness.createTempDirectory();
+		File outputDirectory = new File(directory, "received");
+		outputDirectory.mkdir();
+		File[] files = new File[count];
+		for (int i = 0; i < count; i++)
+			files[i] = ThroughputHarness.createTestFile(directory, "session" + i + ".bin", size, i);
+
+		NetworkEmulator dataLink = new NetworkEmulator();
+		dataLink.setLossProbability(loss);
+		NetworkEmulator ackLink = new NetworkEmulator();
+		ackLink.setDelay(delay, 0);
+		FastFtpServer server = new FastFtpServer(0, mode, WINDOW_SIZE, outputDirectory);
+		server.setDataLink(dataLink);
+		server.setAckLink(ackLink);
+		Thread serverThread = new Thread(server);
+		serverThread.setDaemon(true);
+		serverThread.start();
+
+		// every file logs its handshake and end of transmission, only warnings and errors are kept
+		PrintStream console = System.out;
+		EventLog.getLog().setLevel(EventLog.Level.WARN);
+
+		console.printf("%s, %d files of %d bytes, ack delay %d ms, loss %.3f\n", mode, count, size, delay, loss);
+		console.printf("%12s %10s %10s %10s\n", "connection", "time (s)", "files/s", "intact");
+
+		long start = System.nanoTime();
+		for (File file : files) {
+			FastFtp ftp = new FastFtp(WINDOW_SIZE, TIMEOUT, mode);
+			ftp.send("localhost", server.getPort(), file.getPath());
+		}
+		report(console, "per file", start, files, outputDirectory);
+
+		start = System.nanoTime();
+		FileSession session = new FileSession(WINDOW_SIZE, TIMEOUT, mode);
+		session.setInitialSequenceNumber(SequenceNumber.add(0, -count / 2 * PayloadSize.segmentCount(size, PayloadSize.DEFAULT)));
+		session.open("localhost", server.getPort());
+		for (File file : files)
+			session.send(file.getPath());
+		session.close();
+		report(console, "session", start, files, outputDirectory);
+
+		server.shutdown();
+		dataLink.shutdown();
+		ackLink.shutdown();
+	}
+
+	// the received copies are deleted once compared, so the next run cannot pass on files left over from this one
+	private static void report(PrintStream console, String connection, long start, File[] files, File outputDirectory) throws Exception {
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		// the server finishes the last file once it reads the end of transmission byte
+		Thread.sleep(100);
+		int intact = 0;
+		for (File file : files) {
+			File received = new File(outputDirectory, file.getName());
+			if (received.exists() && ThroughputHarness.sameContents(file, received))
+				intact++;
+			received.delete();
+		}
+
+		console.printf("%12s %10.2f %10.0f %10s\n", connection, seconds, files.length / seconds,
+				intact == files.length ? "yes" : intact + "/" + files.length);
+	}
+}
@@ -0,0 +1,106 @@
+package cpsc441_assignment3;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * StripedTransfer Class
+ *
+ * Sends one file as several stripes in parallel. The file is split into contiguous byte ranges of whole payloads, and every
+ * range is sent by its own Go-Back-N FastFtp with its own sockets, queue, timer and receiver thread, so a single file is
+ * no longer limited to one window and one core. FastFtpServer writes every range at its offset, the file is complete once
+ * every stripe has finished.
+ *
+ * @author Tyrone
+ */
+public class StripedTransfer {
+	private FastFtp[] _Stripes;
+	private EventLog _Log;
+
+	/**
+	 * @param stripeCount	number of ranges sent in parallel
+	 * @param windowSize	window of each stripe (in segments)
+	 * @param rtoTimer		initial time-out interval of each stripe (in milli-seconds)
+	 */
+	public StripedTransfer(int stripeCount, int windowSize, int rtoTimer)
+	{
+		_Log = EventLog.getLog();
+		_Stripes = new FastFtp[stripeCount];
+		for(int i = 0; i < stripeCount; i++)
+			_Stripes[i] = new FastFtp(windowSize, rtoTimer, RetransmissionMode.GO_BACK_N);
+	}
+
+	/**
+	 * @return the sender of every stripe, to configure them before calling send
+	 */
+	public FastFtp[] getStripes()
+	{
+		return _Stripes;
+	}
+
+	/**
+	 * sends the file, returning once every stripe has finished, see isCompleted for whether they all succeeded
+	 *
+	 * @param serverName	Name of the remote server, has to be a FastFtpServer
+	 * @param serverPort	Port number of the remote server
+	 * @param fileName		Name of the file to be trasferred to the remote server
+	 */
+	public void send(final String serverName, final int serverPort, final String fileName)
+	{
+		//the ranges have to be set before the stripes connect, so they are aligned to the payload the stripes ask for,
+		//the same for every stripe configured alike. A receiver that lowers it, or a probed MTU, only costs a short
+		//segment at the end of each stripe
+		long size = new File(fileName).length();
+		int payloadSize = _Stripes[0].getRequestedPayloadSize();
+		long segmentCount = (size + payloadSize - 1) / payloadSize;
+		long stripeLength = (segmentCount + _Stripes.length - 1) / _Stripes.length * payloadSize;
+
+		ExecutorService executor = Executors.newFixedThreadPool(_Stripes.length);
+		for(int i = 0; i < _Stripes.length; i++)
+		{
+			//trailing stripes of a small file can be empty, they still create the file at its full size
+			long offset = Math.min(i * stripeLength, size);
+			final FastFtp stripe = _Stripes[i];
+			stripe.setRange(offset, Math.min(stripeLength, size - offset));
+			executor.execute(new Runnable(){
+				public void run()
+				{
+					stripe.send(serverName, serverPort, fileName);
+				}
+			});
+		}
+
+		executor.shutdown();
+		try{
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}catch(InterruptedException ex)
+		{
+			_Log.error("Interrupted while waiting for the stripes", ex);
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return true once every stripe has delivered its range, false if any of them failed and the file is incomplete
+	 */
+	public boolean isCompleted()
+	{
+		for(FastFtp stripe : _Stripes)
+			if(!stripe.isCompleted())
+				return false;
+		return true;
+	}
+
+	/**
+	 * @return the number of segments resent by all stripes
+	 */
+	public long getRetransmissionCount()
+	{
+		long count = 0;
+		for(FastFtp stripe : _Stripes)
+			count += stripe.getRetransmissionCount();
+		return count;
+	}
+}
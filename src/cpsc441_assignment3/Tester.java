@@ -1,4 +1,7 @@
 package cpsc441_assignment3;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
 /**
  * 
  * A simple test driver
@@ -14,9 +17,9 @@ class Tester {
 	public static void main(String[] args) {
 		// all srguments should be provided
 		// as described in the assignment description 
-		if (args.length != 5) {
+		if (args.length < 5) {
 			System.out.println("wrong number of arguments, try again.");
-			System.out.println("usage: java Tester server port file window timeout");
+			System.out.println("usage: java Tester server port file window timeout [spin] [sr] [fixedrto] [cc] [mmap] [batch] [lockfree] [dupacks=N] [metrics=MS] [jmx] [stripes=N] [log=LEVEL] [sample=N] [resume] [compress=LEVEL] [payload=BYTES] [readahead=N] [pace=MBPS|rtt] [seq=N] [delta]");
 			System.exit(0);
 		}
 		
@@ -27,12 +30,149 @@ class Tester {
 		String fileName = args[2];
 		int windowSize = Integer.parseInt(args[3]);
 		int timeout = Integer.parseInt(args[4]);
+		
+		// optional flags after the required arguments
+		boolean spin = false;
+		boolean fixedRto = false;
+		boolean congestionControl = false;
+		boolean mapped = false;
+		boolean batched = false;
+		boolean lockFree = false;
+		int duplicateAcks = 0;
+		long metricsInterval = 0;
+		boolean jmx = false;
+		boolean resumable = false;
+		int compressionLevel = 0;
+		int payloadSize = PayloadSize.DEFAULT;
+		int readAhead = 0;
+		long pacingRate = 0;
+		int initialSequenceNumber = 0;
+		boolean deltaSync = false;
+		int stripeCount = 0;
+		EventLog log = EventLog.getLog();
+		RetransmissionMode mode = RetransmissionMode.GO_BACK_N;
+		for (int i = 5; i < args.length; i++) {
+			if (args[i].equals("spin"))
+				spin = true;
+			else if (args[i].equals("sr"))
+				mode = RetransmissionMode.SELECTIVE_REPEAT;
+			else if (args[i].equals("fixedrto"))
+				fixedRto = true;
+			else if (args[i].equals("cc"))
+				congestionControl = true;
+			else if (args[i].equals("mmap"))
+				mapped = true;
+			else if (args[i].equals("batch"))
+				batched = true;
+			else if (args[i].equals("lockfree"))
+				lockFree = true;
+			else if (args[i].startsWith("dupacks="))
+				duplicateAcks = Integer.parseInt(args[i].substring("dupacks=".length()));
+			else if (args[i].startsWith("metrics="))
+				metricsInterval = Long.parseLong(args[i].substring("metrics=".length()));
+			else if (args[i].equals("jmx"))
+				jmx = true;
+			else if (args[i].equals("resume"))
+				resumable = true;
+			else if (args[i].startsWith("compress="))
+				compressionLevel = Integer.parseInt(args[i].substring("compress=".length()));
+			else if (args[i].startsWith("payload="))
+				payloadSize = Integer.parseInt(args[i].substring("payload=".length()));
+			else if (args[i].startsWith("readahead="))
+				readAhead = Integer.parseInt(args[i].substring("readahead=".length()));
+			else if (args[i].startsWith("seq="))
+				initialSequenceNumber = Integer.parseInt(args[i].substring("seq=".length()));
+			else if (args[i].equals("delta"))
+				deltaSync = true;
+			else if (args[i].equals("pace=rtt"))
+				pacingRate = FastFtp.PACING_FROM_RTT;
+			else if (args[i].startsWith("pace="))
+				pacingRate = (long) (Double.parseDouble(args[i].substring("pace=".length())) * 1e6 / 8);
+			else if (args[i].startsWith("stripes="))
+				stripeCount = Integer.parseInt(args[i].substring("stripes=".length()));
+			else if (args[i].startsWith("log="))
+				log.setLevel(EventLog.Level.valueOf(args[i].substring("log=".length()).toUpperCase()));
+			else if (args[i].startsWith("sample="))
+				log.setSampleRate(EventLog.Level.DEBUG, Integer.parseInt(args[i].substring("sample=".length())));
+		}
+		
+		// a striped transfer sends ranges of the file in parallel, only FastFtpServer can receive it
+		if (stripeCount > 0) {
+			StripedTransfer striped = new StripedTransfer(stripeCount, windowSize, timeout);
+			for (FastFtp stripe : striped.getStripes()) {
+				stripe.setBlockingWindow(!spin);
+				stripe.setAdaptiveRto(!fixedRto);
+				stripe.setCongestionControl(congestionControl);
+				stripe.setMappedReads(mapped);
+				stripe.setBatchedSends(batched);
+				stripe.setLockFreeWindow(lockFree);
+				stripe.setFastRetransmit(duplicateAcks);
+				stripe.setMetricsReport(metricsInterval);
+				stripe.setJmxMetrics(jmx);
+				stripe.setPayloadSize(payloadSize);
+				// the stripes share the link, so a fixed rate is split between them
+				stripe.setPacingRate(pacingRate > 0 ? pacingRate / stripeCount : pacingRate);
+			}
+			System.out.printf("sending file \'%s\' to server in %d stripes...\n", fileName, stripeCount);
+			striped.send(serverName, serverPort, fileName);
+			log.flush();
+			if (!striped.isCompleted()) {
+				System.out.println("file transfer failed, not every stripe was delivered.");
+				System.exit(1);
+			}
+			System.out.println("file transfer completed.");
+			System.out.printf("segments retransmitted: %d\n", striped.getRetransmissionCount());
+			return;
+		}
 
 		// send the file to server
-		FastFtp ftp = new FastFtp(windowSize, timeout);
+		FastFtp ftp = new FastFtp(windowSize, timeout, mode);
+		ftp.setBlockingWindow(!spin);
+		ftp.setAdaptiveRto(!fixedRto);
+		ftp.setCongestionControl(congestionControl);
+		ftp.setMappedReads(mapped);
+		ftp.setBatchedSends(batched);
+		ftp.setLockFreeWindow(lockFree);
+		ftp.setFastRetransmit(duplicateAcks);
+		ftp.setMetricsReport(metricsInterval);
+		ftp.setJmxMetrics(jmx);
+		ftp.setResumable(resumable);
+		ftp.setCompression(compressionLevel);
+		ftp.setPayloadSize(payloadSize);
+		ftp.setReadAhead(readAhead);
+		ftp.setPacingRate(pacingRate);
+		ftp.setInitialSequenceNumber(initialSequenceNumber);
+		ftp.setDeltaSync(deltaSync);
 		System.out.printf("sending file \'%s\' to server...\n", fileName);
+		long cpuStart = processCpuTime();
 		ftp.send(serverName, serverPort, fileName);
+		long cpuUsed = processCpuTime() - cpuStart;
+		log.flush();
 		System.out.println("file transfer completed.");
+		
+		// report how much cpu the transfer cost, to compare the spin and blocking window modes
+		double megabytes = new File(fileName).length() / (1024.0 * 1024.0);
+		if (cpuUsed >= 0 && megabytes > 0)
+			System.out.printf("cpu time: %.1f ms/MB (%s window)\n", cpuUsed / 1e6 / megabytes, spin ? "spin" : "blocking");
+		System.out.printf("srtt: %.2f ms, rto: %d ms\n", ftp.getSmoothedRtt(), ftp.getRto());
+		System.out.printf("segments retransmitted: %d\n", ftp.getRetransmissionCount());
+		if (payloadSize != PayloadSize.DEFAULT)
+			System.out.printf("payload size: %d bytes\n", ftp.getPayloadSize());
+		if (pacingRate != 0)
+			System.out.printf("pacing rate: %.1f Mbit/s, delayed %d ms\n", ftp.getPacingRate() * 8 / 1e6, ftp.getPacingDelay());
+		if (duplicateAcks > 0)
+			System.out.printf("fast retransmits: %d\n", ftp.getFastRetransmitCount());
+		if (congestionControl)
+			System.out.printf("congestion window: %d segments (threshold %d), %d changes\n", ftp.getCongestionWindow().getWindow(),
+					ftp.getCongestionWindow().getThreshold(), ftp.getCongestionWindow().getChangeCount());
+	}
+	
+	// returns the cpu time used by this process in nano-seconds, or -1 if the JVM does not report it
+	private static long processCpuTime() {
+		java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean)
+			return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+		return -1;
 	}
 
 }
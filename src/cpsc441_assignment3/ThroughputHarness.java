@@ -0,0 +1,209 @@
+package cpsc441_assignment3;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Random;
+
+/**
+ * Runs FastFtp.send against an in-process FastFtpServer across a matrix of window sizes and timeouts, with the link
+ * impaired by a NetworkEmulator, and reports completion time, goodput and retransmission ratio for each combination.
+ * 
+ * The one way delay applies to both the data and the ack direction, every other impairment to the data direction only.
+ * 
+ * With payloads, the window and timeout stay fixed and the payload size of the datagrams varies instead, from
+ * Segment.MAX_PAYLOAD_SIZE up to a jumbo frame.
+ * 
+ * With pacing, the window and timeout stay fixed and the same transfer is sent unpaced, paced at the link's bandwidth and
+ * paced from the window and round trip time, to compare what bursts cost on a link with a short queue (queue=KB).
+ * 
+ * usage: java ThroughputHarness sizeKB loss delay jitter reorder duplicate bandwidthMbps [sr] [payloads] [pacing] [queue=KB]
+ * 
+ * @author Tyrone
+ */
+class ThroughputHarness {
+	private static final int[] WINDOW_SIZES = {10, 50, 200};
+	private static final int[] TIMEOUTS = {20, 100, 500}; // milli-seconds
+	private static final int[] PAYLOAD_SIZES = {PayloadSize.DEFAULT, 1472 - PayloadSize.HEADER_SIZE, 4000, PayloadSize.MAX}; // bytes
+	private static final int PAYLOAD_WINDOW = 50;
+	private static final int PAYLOAD_TIMEOUT = 100; // milli-seconds
+	private static final int PACING_WINDOW = 50;
+	private static final int PACING_TIMEOUT = 100; // milli-seconds
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 7 || args.length > 11) {
+			System.out.println("wrong number of arguments, try again.");
+			System.out.println("usage: java ThroughputHarness sizeKB loss delay jitter reorder duplicate bandwidthMbps [sr] [payloads] [pacing] [queue=KB]");
+			System.exit(0);
+		}
+		
+		int sizeKB = Integer.parseInt(args[0]);
+		double loss = Double.parseDouble(args[1]);
+		long delay = Long.parseLong(args[2]);
+		long jitter = Long.parseLong(args[3]);
+		double reorder = Double.parseDouble(args[4]);
+		double duplicate = Double.parseDouble(args[5]);
+		long bandwidth = (long) (Double.parseDouble(args[6]) * 1000000);
+		RetransmissionMode mode = RetransmissionMode.GO_BACK_N;
+		boolean payloads = false;
+		boolean pacing = false;
+		long queueLimit = 0;
+		for (int i = 7; i < args.length; i++) {
+			if (args[i].equals("sr"))
+				mode = RetransmissionMode.SELECTIVE_REPEAT;
+			else if (args[i].equals("payloads"))
+				payloads = true;
+			else if (args[i].equals("pacing"))
+				pacing = true;
+			else if (args[i].startsWith("queue="))
+				queueLimit = Long.parseLong(args[i].substring("queue=".length())) * 1024;
+		}
+		
+		File directory = createTempDirectory();
+		File outputDirectory = new File(directory, "received");
+		outputDirectory.mkdir();
+		File file = createTestFile(directory, sizeKB * 1024L);
+		
+		NetworkEmulator dataLink = new NetworkEmulator();
+		dataLink.setLossProbability(loss);
+		dataLink.setDelay(delay, jitter);
+		dataLink.setReordering(reorder, Math.max(1, delay));
+		dataLink.setDuplicateProbability(duplicate);
+		dataLink.setBandwidth(bandwidth);
+		dataLink.setQueueLimit(queueLimit);
+		NetworkEmulator ackLink = new NetworkEmulator();
+		ackLink.setDelay(delay, 0);
+		
+		FastFtpServer server = new FastFtpServer(0, mode, maxWindow(), outputDirectory);
+		server.setDataLink(dataLink);
+		server.setAckLink(ackLink);
+		Thread serverThread = new Thread(server);
+		serverThread.setDaemon(true);
+		serverThread.start();
+		
+		// FastFtp logs timeouts and transfer events through the EventLog, only warnings and errors are kept
+		PrintStream console = System.out;
+		EventLog.getLog().setLevel(EventLog.Level.WARN);
+		
+		console.printf("%s, %d KB, loss %.3f, delay %d ms, jitter %d ms, reorder %.3f, duplicate %.3f, bandwidth %s, queue %s\n",
+				mode, sizeKB, loss, delay, jitter, reorder, duplicate, bandwidth > 0 ? args[6] + " Mbps" : "unlimited",
+				queueLimit > 0 ? queueLimit / 1024 + " KB" : "unlimited");
+		if (payloads) {
+			payloadSizes(console, server, file, outputDirectory, mode);
+		}
+		else if (pacing) {
+			pacingRates(console, server, file, outputDirectory, mode, dataLink, bandwidth);
+		}
+		else {
+			console.printf("%8s %8s %12s %14s %14s %8s\n", "window", "rto", "time (s)", "goodput (MB/s)", "retransmitted", "intact");
+			timeouts(console, server, file, outputDirectory, mode);
+		}
+		
+		server.shutdown();
+		dataLink.shutdown();
+		ackLink.shutdown();
+	}
+	
+	private static void timeouts(PrintStream console, FastFtpServer server, File file, File outputDirectory, RetransmissionMode mode) throws Exception {
+		long segments = PayloadSize.segmentCount(file.length(), PayloadSize.DEFAULT);
+		for (int windowSize : WINDOW_SIZES) {
+			for (int timeout : TIMEOUTS) {
+				FastFtp ftp = new FastFtp(windowSize, timeout, mode);
+				long start = System.nanoTime();
+				ftp.send("localhost", server.getPort(), file.getPath());
+				double seconds = (System.nanoTime() - start) / 1e9;
+				
+				// the server finishes the file once it reads the end of transmission byte
+				File received = new File(outputDirectory, file.getName());
+				Thread.sleep(100);
+				
+				console.printf("%8d %8d %12.2f %14.2f %13.1f%% %8s\n", windowSize, timeout, seconds,
+						file.length() / seconds / (1024 * 1024), 100.0 * ftp.getRetransmissionCount() / segments,
+						sameContents(file, received) ? "yes" : "NO");
+			}
+		}
+	}
+	
+	private static void payloadSizes(PrintStream console, FastFtpServer server, File file, File outputDirectory, RetransmissionMode mode) throws Exception {
+		console.printf("window %d, rto %d ms\n", PAYLOAD_WINDOW, PAYLOAD_TIMEOUT);
+		console.printf("%8s %12s %14s %14s %14s %8s\n", "payload", "time (s)", "goodput (MB/s)", "datagrams/s", "retransmitted", "intact");
+		for (int payloadSize : PAYLOAD_SIZES) {
+			FastFtp ftp = new FastFtp(PAYLOAD_WINDOW, PAYLOAD_TIMEOUT, mode);
+			ftp.setPayloadSize(payloadSize);
+			long start = System.nanoTime();
+			ftp.send("localhost", server.getPort(), file.getPath());
+			double seconds = (System.nanoTime() - start) / 1e9;
+			
+			File received = new File(outputDirectory, file.getName());
+			Thread.sleep(100);
+			
+			long segments = PayloadSize.segmentCount(file.length(), ftp.getPayloadSize());
+			console.printf("%8d %12.2f %14.2f %14.0f %13.1f%% %8s\n", ftp.getPayloadSize(), seconds,
+					file.length() / seconds / (1024 * 1024), (segments + ftp.getRetransmissionCount()) / seconds,
+					100.0 * ftp.getRetransmissionCount() / segments, sameContents(file, received) ? "yes" : "NO");
+		}
+	}
+	
+	// unpaced, paced at the link's bandwidth (when it is capped) and paced from the window and round trip time
+	private static void pacingRates(PrintStream console, FastFtpServer server, File file, File outputDirectory, RetransmissionMode mode,
+			NetworkEmulator dataLink, long bandwidth) throws Exception {
+		long[] rates = bandwidth > 0 ? new long[] {0, bandwidth / 8, FastFtp.PACING_FROM_RTT} : new long[] {0, FastFtp.PACING_FROM_RTT};
+		long segments = PayloadSize.segmentCount(file.length(), PayloadSize.DEFAULT);
+		console.printf("window %d, rto %d ms\n", PACING_WINDOW, PACING_TIMEOUT);
+		console.printf("%10s %12s %14s %14s %12s %8s\n", "pacing", "time (s)", "goodput (MB/s)", "retransmitted", "queue drops", "intact");
+		for (long rate : rates) {
+			FastFtp ftp = new FastFtp(PACING_WINDOW, PACING_TIMEOUT, mode);
+			ftp.setBatchedSends(true);
+			ftp.setPacingRate(rate);
+			long drops = dataLink.getQueueDrops();
+			long start = System.nanoTime();
+			ftp.send("localhost", server.getPort(), file.getPath());
+			double seconds = (System.nanoTime() - start) / 1e9;
+			
+			File received = new File(outputDirectory, file.getName());
+			Thread.sleep(100);
+			
+			String pacing = rate == 0 ? "off" : rate == FastFtp.PACING_FROM_RTT ? "rtt" : String.format("%.0f Mbps", rate * 8 / 1e6);
+			console.printf("%10s %12.2f %14.2f %13.1f%% %12d %8s\n", pacing, seconds, file.length() / seconds / (1024 * 1024),
+					100.0 * ftp.getRetransmissionCount() / segments, dataLink.getQueueDrops() - drops, sameContents(file, received) ? "yes" : "NO");
+		}
+	}
+	
+	private static int maxWindow() {
+		int max = 0;
+		for (int windowSize : WINDOW_SIZES)
+			max = Math.max(max, windowSize);
+		return max;
+	}
+	
+	static File createTempDirectory() throws IOException {
+		File directory = File.createTempFile("harness", "");
+		directory.delete();
+		directory.mkdir();
+		directory.deleteOnExit();
+		return directory;
+	}
+	
+	// random contents, so a misplaced segment is always noticed
+	private static File createTestFile(File directory, long size) throws IOException {
+		return createTestFile(directory, "harness.bin", size, 441);
+	}
+	
+	static File createTestFile(File directory, String name, long size, long seed) throws IOException {
+		File file = new File(directory, name);
+		byte[] block = new byte[64 * 1024];
+		Random random = new Random(seed);
+		try (FileOutputStream output = new FileOutputStream(file)) {
+			for (long written = 0; written < size; written += block.length) {
+				random.nextBytes(block);
+				output.write(block, 0, (int) Math.min(block.length, size - written));
+			}
+		}
+		return file;
+	}
+	
+	static boolean sameContents(File expected, File actual) throws IOException {
+		return java.util.Arrays.equals(java.nio.file.Files.readAllBytes(expected.toPath()), java.nio.file.Files.readAllBytes(actual.toPath()));
+	}
+}
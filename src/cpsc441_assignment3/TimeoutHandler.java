@@ -1,22 +1,111 @@
 package cpsc441_assignment3;
 
-import java.util.TimerTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import cpsc441.a3.Segment;
 
 /**
  * Simple timer to handle segment timeouts
  * 
+ * A handler is a re-armable deadline running on a scheduler shared by the whole transfer. Arming only moves the deadline;
+ * a task is scheduled only when nothing is pending or the new deadline is earlier than the pending one. When a pending task
+ * fires before the deadline it reschedules itself for the remainder, so re-arming on every ack costs no thread and usually
+ * no scheduling at all.
+ * 
+ * In Go-Back-N mode a single handler covers the whole window. In Selective Repeat mode each window slot has its own
+ * handler carrying the segment it currently guards.
+ * 
  * @author Tyrone
  */
-public class TimeoutHandler extends TimerTask {
+public class TimeoutHandler implements Runnable {
 	private FastFtp _FtpParent;
+	private ScheduledExecutorService _Scheduler;
+	private Segment _Segment;
+	private boolean _Armed;
+	private long _Deadline;
+	private boolean _Pending;
+	private long _PendingAt;
 	
-	public TimeoutHandler(FastFtp parent)
+	public TimeoutHandler(FastFtp parent, ScheduledExecutorService scheduler)
 	{
 		_FtpParent = parent;
+		_Scheduler = scheduler;
+		_Armed = false;
+		_Pending = false;
+	}
+	
+	/**
+	 * arms the timer to expire after the given delay, replacing any earlier deadline
+	 * 
+	 * @param delay time until the timeout (in milli-seconds)
+	 */
+	public void arm(long delay)
+	{
+		arm(null, delay);
+	}
+	
+	/**
+	 * arms the timer to expire after the given delay, replacing any earlier deadline and segment
+	 * 
+	 * @param seg the segment guarded by this timer, or null when it covers the whole window
+	 * @param delay time until the timeout (in milli-seconds)
+	 */
+	public synchronized void arm(Segment seg, long delay)
+	{
+		_Segment = seg;
+		_Deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+		_Armed = true;
+		
+		if(!_Pending || _Deadline - _PendingAt < 0)
+			schedule(_Deadline);
+	}
+	
+	/**
+	 * disarms the timer. A task that is already pending simply finds nothing to do when it runs
+	 */
+	public synchronized void cancel()
+	{
+		_Armed = false;
 	}
+	
 	public void run()
 	{
-		//do work
-		_FtpParent.processTimeout();
+		Segment expired;
+		synchronized(this)
+		{
+			_Pending = false;
+			if(!_Armed)
+				return;
+			
+			//armed again since this task was scheduled, wait for the new deadline instead
+			if(System.nanoTime() - _Deadline < 0)
+			{
+				schedule(_Deadline);
+				return;
+			}
+			
+			_Armed = false;
+			expired = _Segment;
+		}
+		
+		//called outside our own lock since the parent arms timers while holding its lock
+		if(expired == null)
+			_FtpParent.processTimeout();
+		else
+			_FtpParent.processTimeout(expired);
+	}
+	
+	private void schedule(long at)
+	{
+		_Pending = true;
+		_PendingAt = at;
+		try{
+			_Scheduler.schedule(this, Math.max(0, at - System.nanoTime()), TimeUnit.NANOSECONDS);
+		}catch(Exception ex)
+		{
+			//scheduler shut down at the end of the transfer
+			_Pending = false;
+		}
 	}
 }
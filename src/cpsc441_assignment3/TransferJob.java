@@ -0,0 +1,109 @@
+package cpsc441_assignment3;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * TransferJob Class
+ *
+ * A file submitted to a TransferManager. Reports where the transfer is and how much of its stream the receiver has
+ * acknowledged, and lets callers wait for it to finish.
+ *
+ * @author Tyrone
+ */
+public class TransferJob {
+	public enum State { QUEUED, RUNNING, COMPLETED, FAILED }
+
+	private String _ServerName;
+	private int _ServerPort;
+	private String _FileName;
+	private long _FileSize;
+	private volatile State _State;
+	private volatile FastFtp _Sender;
+	private CountDownLatch _Done;
+
+	TransferJob(String serverName, int serverPort, String fileName)
+	{
+		_ServerName = serverName;
+		_ServerPort = serverPort;
+		_FileName = fileName;
+		_FileSize = new File(fileName).length();
+		_State = State.QUEUED;
+		_Done = new CountDownLatch(1);
+	}
+
+	public String getFileName()
+	{
+		return _FileName;
+	}
+
+	/**
+	 * @return size of the file (in bytes)
+	 */
+	public long getFileSize()
+	{
+		return _FileSize;
+	}
+
+	public State getState()
+	{
+		return _State;
+	}
+
+	/**
+	 * @return number of bytes the receiver has acknowledged so far. These are bytes of the stream sent, which is shorter
+	 * than the file when it is compressed or sent as a delta
+	 */
+	public long getBytesTransferred()
+	{
+		FastFtp sender = _Sender;
+		return sender == null ? 0 : sender.getAckedBytes();
+	}
+
+	/**
+	 * @return fraction of the file acknowledged so far, between 0 and 1. Only an estimate for a compressed or delta
+	 * stream, which reaches 1 once the transfer has completed
+	 */
+	public double getProgress()
+	{
+		if(_State == State.COMPLETED)
+			return 1;
+		return _FileSize == 0 ? 0 : Math.min(1, (double)getBytesTransferred() / _FileSize);
+	}
+
+	/**
+	 * @return the sender of the job, null while it is still queued
+	 */
+	public FastFtp getSender()
+	{
+		return _Sender;
+	}
+
+	/**
+	 * blocks until the job has completed or failed
+	 *
+	 * @return true if the file was delivered
+	 * @throws InterruptedException if the waiting thread is interrupted
+	 */
+	public boolean await() throws InterruptedException
+	{
+		_Done.await();
+		return _State == State.COMPLETED;
+	}
+
+	/**
+	 * sends the file with the given sender, called by the manager on one of its transfer threads
+	 */
+	void run(FastFtp sender)
+	{
+		_Sender = sender;
+		_State = State.RUNNING;
+		try{
+			sender.send(_ServerName, _ServerPort, _FileName);
+		}finally
+		{
+			_State = sender.isCompleted() ? State.COMPLETED : State.FAILED;
+			_Done.countDown();
+		}
+	}
+}
@@ -0,0 +1,207 @@
+package cpsc441_assignment3;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TransferManager Class
+ *
+ * Sends many files concurrently over a bounded number of transfers. Submitted files are queued and at most maxTransfers
+ * of them are sent at once, each by its own FastFtp. Their ack receivers, transmitters and read-ahead threads share one
+ * pool of three threads per transfer and their retransmission timers share one scheduler thread, so the number of
+ * threads and sockets only depends on maxTransfers, not on how many files are submitted. Compression and delta matching
+ * add the workers FastFtp shares between all transfers, one per processor.
+ * 
+ * With virtual threads, on a JVM that has them, the transfers, their receivers and the timer run on virtual threads
+ * instead, so a blocked receiver or sender only costs a small heap allocated stack. Receivers are then no longer bounded.
+ *
+ * @author Tyrone
+ */
+public class TransferManager {
+	private static final int THREADS_PER_TRANSFER = 3; //ack receiver, transmitter and read-ahead
+
+	private int _WindowSize;
+	private int _RtoTimer;
+	private RetransmissionMode _Mode;
+	private ExecutorService _TransferService;
+	private ExecutorService _ReceiverService;
+	private ScheduledExecutorService _TimerService;
+	private List<TransferJob> _Jobs;
+	private EventLog _Log;
+	private boolean _VirtualThreads;
+
+	/**
+	 * @param maxTransfers	number of files sent at the same time
+	 * @param windowSize	window of each transfer (in segments)
+	 * @param rtoTimer		initial time-out interval of each transfer (in milli-seconds)
+	 * @param mode			retransmission strategy of each transfer
+	 */
+	public TransferManager(int maxTransfers, int windowSize, int rtoTimer, RetransmissionMode mode)
+	{
+		this(maxTransfers, windowSize, rtoTimer, mode, false);
+	}
+
+	/**
+	 * @param maxTransfers		number of files sent at the same time
+	 * @param windowSize		window of each transfer (in segments)
+	 * @param rtoTimer			initial time-out interval of each transfer (in milli-seconds)
+	 * @param mode				retransmission strategy of each transfer
+	 * @param virtualThreads	true to run everything on virtual threads, ignored if the JVM has none
+	 */
+	public TransferManager(int maxTransfers, int windowSize, int rtoTimer, RetransmissionMode mode, boolean virtualThreads)
+	{
+		_WindowSize = windowSize;
+		_RtoTimer = rtoTimer;
+		_Mode = mode;
+		_Jobs = new ArrayList<TransferJob>();
+		_Log = EventLog.getLog();
+		_VirtualThreads = virtualThreads && VirtualThreads.isSupported();
+		if(_VirtualThreads)
+		{
+			//virtual threads are always daemons. Idle receivers are simply left for the pool to drop
+			_TransferService = Executors.newFixedThreadPool(maxTransfers, VirtualThreads.factory("FastFtp transfer"));
+			_ReceiverService = Executors.newCachedThreadPool(VirtualThreads.factory("FastFtp receiver"));
+			_TimerService = Executors.newSingleThreadScheduledExecutor(VirtualThreads.factory("FastFtp timer"));
+		}else
+		{
+			_TransferService = Executors.newFixedThreadPool(maxTransfers, daemonThreads("FastFtp transfer"));
+			//every running transfer needs a receiver, a transmitter if it batches its sends and a reading thread if it reads
+			//ahead. Compression and delta matching run on FastFtp's shared workers, not here
+			_ReceiverService = Executors.newFixedThreadPool(THREADS_PER_TRANSFER * maxTransfers, daemonThreads("FastFtp receiver"));
+			_TimerService = FastFtp.createTimerService();
+		}
+	}
+
+	/**
+	 * queues a file to be sent
+	 *
+	 * @param serverName	Name of the remote server
+	 * @param serverPort	Port number of the remote server
+	 * @param fileName		Name of the file to be trasferred to the remote server
+	 * @return the job, to follow its progress
+	 */
+	public TransferJob submit(String serverName, int serverPort, String fileName)
+	{
+		final TransferJob job = new TransferJob(serverName, serverPort, fileName);
+		synchronized(_Jobs)
+		{
+			_Jobs.add(job);
+		}
+		_TransferService.execute(new Runnable(){
+			public void run()
+			{
+				job.run(new FastFtp(_WindowSize, _RtoTimer, _Mode, _ReceiverService, _TimerService));
+			}
+		});
+		return job;
+	}
+
+	/**
+	 * @return true if the transfers run on virtual threads
+	 */
+	public boolean isUsingVirtualThreads()
+	{
+		return _VirtualThreads;
+	}
+
+	/**
+	 * @return every job submitted so far, in the order they were submitted
+	 */
+	public List<TransferJob> getJobs()
+	{
+		synchronized(_Jobs)
+		{
+			return new ArrayList<TransferJob>(_Jobs);
+		}
+	}
+
+	/**
+	 * waits for every submitted job to finish, then stops the shared threads. No jobs can be submitted afterwards
+	 */
+	public void shutdown()
+	{
+		_TransferService.shutdown();
+		try{
+			_TransferService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}catch(InterruptedException ex)
+		{
+			_Log.error("Interrupted while waiting for transfers", ex);
+			Thread.currentThread().interrupt();
+		}
+		_ReceiverService.shutdownNow();
+		_TimerService.shutdownNow();
+	}
+
+	private static ThreadFactory daemonThreads(final String name)
+	{
+		return new ThreadFactory(){
+			public Thread newThread(Runnable task)
+			{
+				Thread thread = new Thread(task, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * Sends every file given on the command line, reporting the progress of the jobs every second
+	 */
+	public static void main(String[] args) {
+		if (args.length < 6) {
+			System.out.println("wrong number of arguments, try again.");
+			System.out.println("usage: java TransferManager server port window timeout transfers file...");
+			System.exit(0);
+		}
+
+		String serverName = args[0];
+		int serverPort = Integer.parseInt(args[1]);
+		int windowSize = Integer.parseInt(args[2]);
+		int timeout = Integer.parseInt(args[3]);
+		int maxTransfers = Integer.parseInt(args[4]);
+
+		final TransferManager manager = new TransferManager(maxTransfers, windowSize, timeout, RetransmissionMode.GO_BACK_N);
+		for (int i = 5; i < args.length; i++)
+			manager.submit(serverName, serverPort, args[i]);
+
+		Thread reporter = new Thread(new Runnable(){
+			public void run()
+			{
+				try{
+					while(!Thread.currentThread().isInterrupted())
+					{
+						Thread.sleep(1000);
+						report(manager.getJobs());
+					}
+				}catch(InterruptedException ex){} //done
+			}
+		});
+		reporter.setDaemon(true);
+		reporter.start();
+
+		long start = System.nanoTime();
+		manager.shutdown();
+		reporter.interrupt();
+		report(manager.getJobs());
+		System.out.printf("all transfers finished in %.2f s\n", (System.nanoTime() - start) / 1e9);
+	}
+
+	private static void report(List<TransferJob> jobs)
+	{
+		int[] counts = new int[TransferJob.State.values().length];
+		long transferred = 0;
+		long total = 0;
+		for (TransferJob job : jobs) {
+			counts[job.getState().ordinal()]++;
+			transferred += job.getBytesTransferred();
+			total += job.getFileSize();
+		}
+		System.out.printf("queued %d, running %d, completed %d, failed %d, %d KB of the streams acknowledged, files of %d KB\n",
+				counts[0], counts[1], counts[2], counts[3], transferred / 1024, total / 1024);
+	}
+}
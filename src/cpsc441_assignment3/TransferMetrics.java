@@ -0,0 +1,265 @@
+package cpsc441_assignment3;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+/**
+ * TransferMetrics Class
+ *
+ * Counters and gauges of a single FastFtp transfer. The counters are LongAdders and the send latencies go to a
+ * LatencyHistogram, so the send and ack paths only ever add to them without taking a lock. The gauges are read from the
+ * transfer when asked for.
+ *
+ * The metrics can be registered over JMX for the duration of the transfer, and report() formats them as a single line of
+ * key=value pairs for the periodic report.
+ *
+ * @author Tyrone
+ */
+public class TransferMetrics implements TransferMetricsMBean {
+	private FastFtp _Transfer;
+	private LongAdder _SegmentsSent;
+	private LongAdder _SegmentsRetransmitted;
+	private LongAdder _AcksReceived;
+	private LongAdder _DuplicateAcks;
+	private LongAdder _OutOfWindowAcks;
+	private LongAdder _Timeouts;
+	private LongAdder _FastRetransmits;
+	private LatencyHistogram _SendLatency;
+	private volatile long _StartTime;
+	private volatile long _EndTime;
+	private ObjectName _Name;
+
+	/**
+	 * @param transfer the transfer the gauges are read from
+	 */
+	public TransferMetrics(FastFtp transfer)
+	{
+		_Transfer = transfer;
+		_SegmentsSent = new LongAdder();
+		_SegmentsRetransmitted = new LongAdder();
+		_AcksReceived = new LongAdder();
+		_DuplicateAcks = new LongAdder();
+		_OutOfWindowAcks = new LongAdder();
+		_Timeouts = new LongAdder();
+		_FastRetransmits = new LongAdder();
+		_SendLatency = new LatencyHistogram();
+		_StartTime = System.nanoTime();
+		_EndTime = 0;
+	}
+
+	/**
+	 * starts the clock for the goodput
+	 */
+	void start()
+	{
+		_StartTime = System.nanoTime();
+	}
+
+	/**
+	 * stops the clock for the goodput
+	 */
+	void stop()
+	{
+		_EndTime = System.nanoTime();
+	}
+
+	void segmentSent(long latency)
+	{
+		_SegmentsSent.increment();
+		_SendLatency.record(latency);
+	}
+
+	void segmentRetransmitted()
+	{
+		_SegmentsRetransmitted.increment();
+	}
+
+	void ackReceived()
+	{
+		_AcksReceived.increment();
+	}
+
+	void duplicateAck()
+	{
+		_DuplicateAcks.increment();
+	}
+
+	void outOfWindowAck()
+	{
+		_OutOfWindowAcks.increment();
+	}
+
+	void timeout()
+	{
+		_Timeouts.increment();
+	}
+
+	void fastRetransmit()
+	{
+		_FastRetransmits.increment();
+	}
+
+	/**
+	 * @return datagrams written, first transmissions and resends
+	 */
+	public long getSegmentsSent()
+	{
+		return _SegmentsSent.sum();
+	}
+
+	public long getSegmentsRetransmitted()
+	{
+		return _SegmentsRetransmitted.sum();
+	}
+
+	public long getAcksReceived()
+	{
+		return _AcksReceived.sum();
+	}
+
+	/**
+	 * @return acks that acknowledged nothing new
+	 */
+	public long getDuplicateAcks()
+	{
+		return _DuplicateAcks.sum();
+	}
+
+	/**
+	 * @return acks for segments that were never sent
+	 */
+	public long getOutOfWindowAcks()
+	{
+		return _OutOfWindowAcks.sum();
+	}
+
+	public long getTimeouts()
+	{
+		return _Timeouts.sum();
+	}
+
+	public long getFastRetransmits()
+	{
+		return _FastRetransmits.sum();
+	}
+
+	/**
+	 * @return segments sent but not acknowledged yet
+	 */
+	public int getWindowOccupancy()
+	{
+		return _Transfer.getWindowOccupancy();
+	}
+
+	/**
+	 * @return the congestion window (in segments), only updated with congestion control
+	 */
+	public int getCongestionWindow()
+	{
+		return _Transfer.getCongestionWindow().getWindow();
+	}
+
+	/**
+	 * @return the retransmission timeout (in milli-seconds)
+	 */
+	public long getRto()
+	{
+		return _Transfer.getRto();
+	}
+
+	/**
+	 * @return the smoothed round trip time (in milli-seconds)
+	 */
+	public double getSmoothedRtt()
+	{
+		return _Transfer.getSmoothedRtt();
+	}
+
+	/**
+	 * @return bytes of the stream acknowledged, the compressed or delta stream when one is sent in place of the file
+	 */
+	public long getBytesAcknowledged()
+	{
+		return _Transfer.getAckedBytes();
+	}
+
+	/**
+	 * @return bytes of the stream acknowledged per second since the transfer started
+	 */
+	public double getGoodput()
+	{
+		long end = _EndTime != 0 ? _EndTime : System.nanoTime();
+		double seconds = (end - _StartTime) / 1e9;
+		return seconds > 0 ? getBytesAcknowledged() / seconds : 0;
+	}
+
+	/**
+	 * @return median time to write a datagram (in nano-seconds, rounded up to a power of two)
+	 */
+	public long getSendLatencyP50()
+	{
+		return _SendLatency.getPercentile(50);
+	}
+
+	/**
+	 * @return 99th percentile of the time to write a datagram (in nano-seconds, rounded up to a power of two)
+	 */
+	public long getSendLatencyP99()
+	{
+		return _SendLatency.getPercentile(99);
+	}
+
+	/**
+	 * @return number of datagram writes per bucket, see LatencyHistogram
+	 */
+	public long[] getSendLatencyHistogram()
+	{
+		return _SendLatency.getCounts();
+	}
+
+	/**
+	 * registers the metrics with the platform MBean server
+	 *
+	 * @param name value of the name key of the object name, identifying the transfer
+	 */
+	void register(String name)
+	{
+		try{
+			_Name = new ObjectName("cpsc441_assignment3:type=TransferMetrics,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, _Name);
+		}catch(Exception ex)
+		{
+			EventLog.getLog().warn("Failed to register metrics", ex);
+			_Name = null;
+		}
+	}
+
+	/**
+	 * removes the metrics from the platform MBean server, if they were registered
+	 */
+	void unregister()
+	{
+		if(_Name == null)
+			return;
+
+		try{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(_Name);
+		}catch(Exception ex){} //already gone
+		_Name = null;
+	}
+
+	/**
+	 * @return every metric on a single line of key=value pairs, latencies in micro-seconds
+	 */
+	public String report()
+	{
+		return String.format(Locale.ROOT, "sent=%d retransmitted=%d acks=%d duplicate_acks=%d out_of_window_acks=%d timeouts=%d fast_retransmits=%d "
+				+ "window=%d cwnd=%d rto_ms=%d srtt_ms=%.2f acked_bytes=%d goodput_mbps=%.2f send_p50_us=%.1f send_p99_us=%.1f",
+				getSegmentsSent(), getSegmentsRetransmitted(), getAcksReceived(), getDuplicateAcks(), getOutOfWindowAcks(),
+				getTimeouts(), getFastRetransmits(), getWindowOccupancy(), getCongestionWindow(), getRto(), getSmoothedRtt(),
+				getBytesAcknowledged(), getGoodput() * 8 / 1e6, getSendLatencyP50() / 1e3, getSendLatencyP99() / 1e3);
+	}
+}
@@ -0,0 +1,40 @@
+package cpsc441_assignment3;
+
+/**
+ * The management interface TransferMetrics is registered with over JMX
+ *
+ * @author Tyrone
+ */
+public interface TransferMetricsMBean {
+	long getSegmentsSent();
+
+	long getSegmentsRetransmitted();
+
+	long getAcksReceived();
+
+	long getDuplicateAcks();
+
+	long getOutOfWindowAcks();
+
+	long getTimeouts();
+
+	long getFastRetransmits();
+
+	int getWindowOccupancy();
+
+	int getCongestionWindow();
+
+	long getRto();
+
+	double getSmoothedRtt();
+
+	long getBytesAcknowledged();
+
+	double getGoodput();
+
+	long getSendLatencyP50();
+
+	long getSendLatencyP99();
+
+	long[] getSendLatencyHistogram();
+}
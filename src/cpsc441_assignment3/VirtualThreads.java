@@ -0,0 +1,61 @@
+package cpsc441_assignment3;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * VirtualThreads Class
+ *
+ * Creates virtual threads when the JVM has them (Java 21 and later). The project is built for Java 8, so the API is
+ * looked up reflectively once, and callers fall back to platform threads where it is missing.
+ *
+ * @author Tyrone
+ */
+public class VirtualThreads {
+	private static final Method OF_VIRTUAL = lookup(Thread.class, "ofVirtual");
+	private static final Method NAME = lookup(OF_VIRTUAL == null ? null : OF_VIRTUAL.getReturnType(), "name", String.class, long.class);
+	private static final Method FACTORY = lookup(OF_VIRTUAL == null ? null : OF_VIRTUAL.getReturnType(), "factory");
+
+	private VirtualThreads()
+	{
+	}
+
+	/**
+	 * @return true if this JVM can create virtual threads
+	 */
+	public static boolean isSupported()
+	{
+		return OF_VIRTUAL != null && NAME != null && FACTORY != null;
+	}
+
+	/**
+	 * @param name prefix of the thread names, each thread gets a number appended
+	 * @return a factory of virtual threads, or null if this JVM has none
+	 */
+	public static ThreadFactory factory(String name)
+	{
+		if(!isSupported())
+			return null;
+
+		try{
+			Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name + " ", 0L);
+			return (ThreadFactory)FACTORY.invoke(builder);
+		}catch(Exception ex)
+		{
+			return null;
+		}
+	}
+
+	private static Method lookup(Class<?> type, String name, Class<?>... parameters)
+	{
+		if(type == null)
+			return null;
+
+		try{
+			return type.getMethod(name, parameters);
+		}catch(NoSuchMethodException ex)
+		{
+			return null;
+		}
+	}
+}